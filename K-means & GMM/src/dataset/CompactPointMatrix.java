@@ -0,0 +1,320 @@
+package dataset;
+
+import java.util.Arrays;
+
+/**
+ * Data points stored in less memory than PointMatrix, at a loss of precision. Coordinates are kept
+ * either as 4-byte floats, or as 2-byte fixed-point codes relative to a bounding box - the box is
+ * split into 65535 steps per dimension, and a coordinate is stored as the number of the nearest
+ * step. That cuts the memory of coordinates to 1/2 or 1/4 of doubles.
+ *
+ * Points are decoded into doubles by readPoints(...), so algorithms over a PointSource (e.g.
+ * OutOfCoreKmeans) run on compact points unchanged and still calculate distances and sums in
+ * double. measureError(...) reports how far the stored points are from the original ones.
+ */
+public class CompactPointMatrix implements PointSource {
+
+    /**
+     * Ways of storing a coordinate.
+     */
+    public enum Precision {
+        // 4-byte float, with a relative error of at most 2^-24
+        FLOAT32,
+        // 2-byte fixed-point code in a bounding box, with an error of at most half a step
+        FIXED16
+    }
+
+    // number of fixed-point steps per dimension of the bounding box
+    private static final int FIXED_STEPS = 65535;
+
+    // points read per chunk by measureError(...)
+    private static final int CHUNK_POINTS = 65536;
+
+    private final int pointsCount;
+
+    private final int dimension;
+
+    private final Precision precision;
+
+    // row-major coordinates as floats; null unless the precision is FLOAT32
+    private final float[] floats;
+
+    // row-major coordinates as unsigned fixed-point codes; null unless the precision is FIXED16
+    private final char[] codes;
+
+    // lower corner of the bounding box and size of a step per dimension, for FIXED16
+    private final double[] origin;
+    private final double[] step;
+
+    private CompactPointMatrix(PointSource source, Precision precision, double[] min,
+                               double[] max) {
+        this.pointsCount = source.pointsCount();
+        this.dimension = source.dimension();
+        this.precision = precision;
+        int length = this.pointsCount * this.dimension;
+        this.floats = precision == Precision.FLOAT32 ? new float[length] : null;
+        this.codes = precision == Precision.FIXED16 ? new char[length] : null;
+        this.origin = min;
+        this.step = new double[this.dimension];
+        if (precision == Precision.FIXED16) {
+            for (int d = 0; d < this.dimension; d++) {
+                this.step[d] = (max[d] - min[d]) / FIXED_STEPS;
+            }
+        }
+
+        double[] chunk = new double[Math.min(CHUNK_POINTS, this.pointsCount) * this.dimension];
+        for (int from = 0; from < this.pointsCount; from += CHUNK_POINTS) {
+            int count = Math.min(CHUNK_POINTS, this.pointsCount - from);
+            source.readPoints(from, count, chunk);
+            int offset = from * this.dimension;
+            for (int j = 0; j < count * this.dimension; j++) {
+                if (this.floats != null) {
+                    this.floats[offset + j] = (float) chunk[j];
+                } else {
+                    this.codes[offset + j] = this.encode(chunk[j], j % this.dimension);
+                }
+            }
+        }
+    }
+
+    /**
+     * Store points as floats.
+     *
+     * @param source data points
+     * @return compact copy of the points
+     */
+    public static CompactPointMatrix ofFloats(PointSource source) {
+        return new CompactPointMatrix(source, Precision.FLOAT32, null, null);
+    }
+
+    /**
+     * Store points as fixed-point codes in their own bounding box.
+     *
+     * @param source data points
+     * @return compact copy of the points
+     */
+    public static CompactPointMatrix ofFixed16(PointSource source) {
+        int dimension = source.dimension();
+        double[] min = new double[dimension];
+        double[] max = new double[dimension];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        int pointsCount = source.pointsCount();
+        double[] chunk = new double[Math.min(CHUNK_POINTS, pointsCount) * dimension];
+        for (int from = 0; from < pointsCount; from += CHUNK_POINTS) {
+            int count = Math.min(CHUNK_POINTS, pointsCount - from);
+            source.readPoints(from, count, chunk);
+            for (int j = 0; j < count * dimension; j++) {
+                min[j % dimension] = Math.min(min[j % dimension], chunk[j]);
+                max[j % dimension] = Math.max(max[j % dimension], chunk[j]);
+            }
+        }
+        return ofFixed16(source, min, max);
+    }
+
+    /**
+     * Store points as fixed-point codes in a given bounding box, e.g. (-BorderSize, BorderSize)
+     * of GMMDataset in every dimension. Coordinates outside the box are clamped to it.
+     *
+     * @param source data points
+     * @param min    lower corner of the box
+     * @param max    upper corner of the box
+     * @return compact copy of the points
+     */
+    public static CompactPointMatrix ofFixed16(PointSource source, double[] min, double[] max) {
+        int dimension = source.dimension();
+        if (min.length != dimension || max.length != dimension) {
+            throw new IllegalArgumentException("Compact point matrix - bounding box of dimension "
+                    + min.length + " / " + max.length + " for points of dimension " + dimension
+                    + ". ");
+        }
+        min = min.clone();
+        max = max.clone();
+        for (int d = 0; d < dimension; d++) {
+            // an empty source leaves an infinite box - any finite one will do
+            if (!(min[d] <= max[d]) || Double.isInfinite(max[d] - min[d])) {
+                if (source.pointsCount() > 0) {
+                    throw new IllegalArgumentException("Compact point matrix - invalid bounding "
+                            + "box in dimension " + d + ": [" + min[d] + ", " + max[d] + "]. ");
+                }
+                min[d] = 0;
+                max[d] = 0;
+            }
+        }
+        return new CompactPointMatrix(source, Precision.FIXED16, min, max);
+    }
+
+    @Override
+    public int pointsCount() {
+        return this.pointsCount;
+    }
+
+    @Override
+    public int dimension() {
+        return this.dimension;
+    }
+
+    @Override
+    public void readPoints(int from, int count, double[] dest) {
+        int offset = from * this.dimension;
+        int length = count * this.dimension;
+        if (this.floats != null) {
+            for (int j = 0; j < length; j++) {
+                dest[j] = this.floats[offset + j];
+            }
+            return;
+        }
+        for (int p = 0; p < length; p += this.dimension) {
+            for (int d = 0; d < this.dimension; d++) {
+                dest[p + d] = this.origin[d] + this.codes[offset + p + d] * this.step[d];
+            }
+        }
+    }
+
+    /**
+     * Get the way coordinates are stored.
+     *
+     * @return precision of coordinates
+     */
+    public Precision precision() {
+        return this.precision;
+    }
+
+    /**
+     * Get the memory taken by coordinates.
+     *
+     * @return bytes of stored coordinates
+     */
+    public long bytes() {
+        long length = (long) this.pointsCount * this.dimension;
+        return this.floats != null ? length * Float.BYTES : length * Character.BYTES;
+    }
+
+    /**
+     * Compare the stored points with the original ones.
+     *
+     * @param original the points this matrix was built from
+     * @return errors of coordinates
+     */
+    public ErrorReport measureError(PointSource original) {
+        if (original.pointsCount() != this.pointsCount
+                || original.dimension() != this.dimension) {
+            throw new IllegalArgumentException("Compact point matrix - " + original.pointsCount()
+                    + " original points of dimension " + original.dimension() + " for "
+                    + this.pointsCount + " points of dimension " + this.dimension + ". ");
+        }
+        int chunkPoints = Math.min(CHUNK_POINTS, this.pointsCount);
+        double[] expected = new double[chunkPoints * this.dimension];
+        double[] actual = new double[chunkPoints * this.dimension];
+        double maxError = 0;
+        double sumOfSquares = 0;
+        double maxPointError = 0;
+        for (int from = 0; from < this.pointsCount; from += chunkPoints) {
+            int count = Math.min(chunkPoints, this.pointsCount - from);
+            original.readPoints(from, count, expected);
+            this.readPoints(from, count, actual);
+            for (int p = 0; p < count; p++) {
+                double pointError = 0;
+                for (int d = 0; d < this.dimension; d++) {
+                    int j = p * this.dimension + d;
+                    double error = actual[j] - expected[j];
+                    maxError = Math.max(maxError, Math.abs(error));
+                    pointError += error * error;
+                }
+                sumOfSquares += pointError;
+                maxPointError = Math.max(maxPointError, pointError);
+            }
+        }
+        long length = (long) this.pointsCount * this.dimension;
+        return new ErrorReport(maxError, length == 0 ? 0 : Math.sqrt(sumOfSquares / length),
+                Math.sqrt(maxPointError), this.bytes(), length * Double.BYTES);
+    }
+
+    /**
+     * Encode a coordinate as the fixed-point code of the nearest step, clamped to the box.
+     *
+     * @param value coordinate
+     * @param dim   index of dimension
+     * @return unsigned 16-bit code
+     */
+    private char encode(double value, int dim) {
+        if (this.step[dim] == 0) {
+            return 0;
+        }
+        double code = Math.rint((value - this.origin[dim]) / this.step[dim]);
+        return (char) Math.max(0, Math.min(FIXED_STEPS, code));
+    }
+
+    /**
+     * Errors of compact coordinates against the original ones, and the memory they save.
+     */
+    public static class ErrorReport {
+
+        // largest absolute error of a coordinate
+        private final double maxError;
+
+        // root mean square error of coordinates
+        private final double rmsError;
+
+        // largest euclidean distance between a stored point and its original
+        private final double maxPointError;
+
+        // bytes of compact coordinates, and of the same coordinates as doubles
+        private final long bytes;
+        private final long doubleBytes;
+
+        private ErrorReport(double maxError, double rmsError, double maxPointError, long bytes,
+                            long doubleBytes) {
+            this.maxError = maxError;
+            this.rmsError = rmsError;
+            this.maxPointError = maxPointError;
+            this.bytes = bytes;
+            this.doubleBytes = doubleBytes;
+        }
+
+        /**
+         * Get the largest absolute error of a coordinate.
+         *
+         * @return maximum error
+         */
+        public double maxError() {
+            return this.maxError;
+        }
+
+        /**
+         * Get the root mean square error of coordinates.
+         *
+         * @return RMS error
+         */
+        public double rmsError() {
+            return this.rmsError;
+        }
+
+        /**
+         * Get the largest distance between a stored point and its original. Distances from a
+         * stored point to any center are off by at most this much.
+         *
+         * @return maximum error of a point
+         */
+        public double maxPointError() {
+            return this.maxPointError;
+        }
+
+        /**
+         * Get the ratio of the memory of doubles to the memory of compact coordinates.
+         *
+         * @return memory saving factor
+         */
+        public double compression() {
+            return this.bytes == 0 ? 1 : (double) this.doubleBytes / this.bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("max error %.3e, rms error %.3e, max point error %.3e, "
+                            + "%d bytes instead of %d (%.1fx smaller)", this.maxError,
+                    this.rmsError, this.maxPointError, this.bytes, this.doubleBytes,
+                    this.compression());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package dataset;
+
+/**
+ * Pre-aggregation of data points for clustering. Points falling into the same cell of a fine grid
+ * (or exactly equal points) are replaced with one weighted point at their centroid, whose weight
+ * is the total weight of the points. Clustering the aggregated points gives centers close to
+ * those of the full data, with far fewer points - e.g. points of a GMMDataset within
+ * (-borderSize, borderSize) on a grid of cell size borderSize / 1000 leave at most 2000 * 2000
+ * cells however many points there are.
+ *
+ * The cell of every original point is kept, so labels of aggregated points can be mapped back to
+ * the original points.
+ */
+public class GridAggregation {
+
+    // weighted centroids of non-empty cells
+    private final PointMatrix aggregated;
+
+    // index of the aggregated point of every original point
+    private final int[] cellOf;
+
+    private GridAggregation(PointMatrix aggregated, int[] cellOf) {
+        this.aggregated = aggregated;
+        this.cellOf = cellOf;
+    }
+
+    /**
+     * Aggregate points falling into the same cell of a grid. Cells are cubes of side cellSize,
+     * with a corner at the origin.
+     *
+     * @param points   data points, possibly weighted
+     * @param cellSize side of grid cells
+     * @return aggregation of the points
+     */
+    public static GridAggregation ofGrid(PointMatrix points, double cellSize) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Grid aggregation - invalid cell size: "
+                    + cellSize + ". ");
+        }
+        int dimension = points.dimension();
+        double[] data = points.data();
+        long[] cells = new long[data.length];
+        for (int i = 0; i < data.length; i++) {
+            cells[i] = (long) Math.floor(data[i] / cellSize);
+        }
+        return aggregate(points, cells, dimension);
+    }
+
+    /**
+     * Aggregate points with exactly the same coordinates.
+     *
+     * @param points data points, possibly weighted
+     * @return aggregation of the points
+     */
+    public static GridAggregation ofDuplicates(PointMatrix points) {
+        double[] data = points.data();
+        long[] cells = new long[data.length];
+        for (int i = 0; i < data.length; i++) {
+            // adding 0.0 turns -0.0 into 0.0, so that they are the same key
+            cells[i] = Double.doubleToLongBits(data[i] + 0.0);
+        }
+        return aggregate(points, cells, points.dimension());
+    }
+
+    /**
+     * Get the aggregated points - the weighted centroid of every non-empty cell.
+     *
+     * @return aggregated points with weights
+     */
+    public PointMatrix aggregated() {
+        return this.aggregated;
+    }
+
+    /**
+     * Get the index of the aggregated point of every original point.
+     *
+     * @return cell of every original point
+     */
+    public int[] cellOf() {
+        return this.cellOf.clone();
+    }
+
+    /**
+     * Map labels of aggregated points back to the original points.
+     *
+     * @param cellLabels label of every aggregated point
+     * @return label of every original point
+     */
+    public int[] expandLabels(int[] cellLabels) {
+        int[] labels = new int[this.cellOf.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = cellLabels[this.cellOf[i]];
+        }
+        return labels;
+    }
+
+    /**
+     * Group points with the same key tuple, by sorting point indices by their keys.
+     *
+     * @param points    data points
+     * @param keys      row-major key tuple of every point (pointsCount * dimension)
+     * @param dimension length of a key tuple
+     * @return aggregation of the points
+     */
+    private static GridAggregation aggregate(PointMatrix points, long[] keys, int dimension) {
+        int pointsCount = points.pointsCount();
+        int[] order = new int[pointsCount];
+        for (int i = 0; i < pointsCount; i++) {
+            order[i] = i;
+        }
+        sort(order, new int[pointsCount], 0, pointsCount, keys, dimension);
+
+        // count cells
+        int cellCount = 0;
+        for (int i = 0; i < pointsCount; i++) {
+            if (i == 0 || compare(keys, order[i - 1], order[i], dimension) != 0) {
+                cellCount++;
+            }
+        }
+
+        // weighted centroids of cells
+        double[] data = points.data();
+        double[] sums = new double[cellCount * dimension];
+        double[] weights = new double[cellCount];
+        int[] firstPoints = new int[cellCount];
+        int[] cellOf = new int[pointsCount];
+        int cell = -1;
+        for (int i = 0; i < pointsCount; i++) {
+            int index = order[i];
+            if (i == 0 || compare(keys, order[i - 1], index, dimension) != 0) {
+                cell++;
+                firstPoints[cell] = index;
+            }
+            cellOf[index] = cell;
+            double weight = points.weight(index);
+            weights[cell] += weight;
+            for (int d = 0; d < dimension; d++) {
+                sums[cell * dimension + d] += weight * data[index * dimension + d];
+            }
+        }
+        for (int c = 0; c < cellCount; c++) {
+            if (weights[c] <= 0) {
+                // only zero-weight points in the cell - use one of them
+                points.copyPoint(firstPoints[c], sums, c * dimension);
+                continue;
+            }
+            for (int d = 0; d < dimension; d++) {
+                sums[c * dimension + d] /= weights[c];
+            }
+        }
+
+        PointMatrix aggregated = new PointMatrix(sums, dimension);
+        aggregated.setWeights(weights);
+        return new GridAggregation(aggregated, cellOf);
+    }
+
+    /**
+     * Compare the key tuples of 2 points lexicographically.
+     */
+    private static int compare(long[] keys, int a, int b, int dimension) {
+        for (int d = 0; d < dimension; d++) {
+            int result = Long.compare(keys[a * dimension + d], keys[b * dimension + d]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Merge sort of order[from, to) by key tuples, with a buffer of the same length as order.
+     */
+    static void sort(int[] order, int[] buffer, int from, int to, long[] keys,
+                     int dimension) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sort(order, buffer, from, mid, keys, dimension);
+        sort(order, buffer, mid, to, keys, dimension);
+        if (compare(keys, order[mid - 1], order[mid], dimension) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && compare(keys, buffer[i], buffer[j], dimension) <= 0)) {
+                order[k] = buffer[i++];
+            } else {
+                order[k] = buffer[j++];
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package dataset;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Data points in a binary file, mapped into memory instead of being loaded onto the heap. The
+ * file holds nothing but coordinates as little-endian 8-byte doubles, point after point, so the
+ * j-th coordinate of the i-th point is at byte (i * dimension + j) * 8.
+ *
+ * A single mapping can not be larger than 2GB, so the file is mapped in segments of whole points.
+ * Reading is thread safe.
+ */
+public class MappedPointFile implements PointSource, AutoCloseable {
+
+    // maximum size of a mapped segment in bytes
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private final FileChannel channel;
+
+    private final int pointsCount;
+
+    private final int dimension;
+
+    // number of points per segment, and the mapped segments
+    private final int pointsPerSegment;
+    private final DoubleBuffer[] segments;
+
+    /**
+     * Map a binary point file.
+     *
+     * @param path      path of the file
+     * @param dimension dimension of data points
+     * @throws IOException if the file can not be opened or mapped
+     */
+    public MappedPointFile(Path path, int dimension) throws IOException {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("Mapped point file - invalid dimension: "
+                    + dimension + ". ");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        long pointBytes = (long) dimension * Double.BYTES;
+        long size = this.channel.size();
+        if (size % pointBytes != 0 || size / pointBytes > Integer.MAX_VALUE) {
+            this.channel.close();
+            throw new IllegalArgumentException("Mapped point file - size of " + path + " ("
+                    + size + " bytes) does not fit points of dimension " + dimension + ". ");
+        }
+        this.dimension = dimension;
+        this.pointsCount = (int) (size / pointBytes);
+        this.pointsPerSegment = (int) Math.max(1, SEGMENT_BYTES / pointBytes);
+
+        int segmentCount = (this.pointsCount + this.pointsPerSegment - 1) / this.pointsPerSegment;
+        this.segments = new DoubleBuffer[segmentCount];
+        for (int s = 0; s < segmentCount; s++) {
+            long position = s * (long) this.pointsPerSegment * pointBytes;
+            long length = Math.min(this.pointsPerSegment * pointBytes, size - position);
+            this.segments[s] = this.channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+                    .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        }
+    }
+
+    /**
+     * Write data points into a binary point file that can be mapped by this class.
+     *
+     * @param source data points
+     * @param path   path of the file, overwritten if it exists
+     * @throws IOException if the file can not be written
+     */
+    public static void write(PointSource source, Path path) throws IOException {
+        int dimension = source.dimension();
+        int chunkPoints = Math.max(1, 65536 / dimension);
+        double[] chunk = new double[chunkPoints * dimension];
+        ByteBuffer buffer = ByteBuffer.allocate(chunk.length * Double.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int from = 0; from < source.pointsCount(); from += chunkPoints) {
+                int count = Math.min(chunkPoints, source.pointsCount() - from);
+                source.readPoints(from, count, chunk);
+                buffer.clear();
+                buffer.asDoubleBuffer().put(chunk, 0, count * dimension);
+                buffer.limit(count * dimension * Double.BYTES);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int pointsCount() {
+        return this.pointsCount;
+    }
+
+    @Override
+    public int dimension() {
+        return this.dimension;
+    }
+
+    @Override
+    public void readPoints(int from, int count, double[] dest) {
+        int destOffset = 0;
+        while (count > 0) {
+            int segment = from / this.pointsPerSegment;
+            int inSegment = from - segment * this.pointsPerSegment;
+            int n = Math.min(count, this.pointsPerSegment - inSegment);
+            // absolute bulk get - does not touch the position of the shared buffer
+            this.segments[segment].get(inSegment * this.dimension, dest, destOffset,
+                    n * this.dimension);
+            destOffset += n * this.dimension;
+            from += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Close the file. Mapped segments stay valid until they are garbage collected.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
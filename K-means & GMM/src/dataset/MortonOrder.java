@@ -0,0 +1,123 @@
+package dataset;
+
+import java.util.Arrays;
+
+/**
+ * Reordering of data points along a Z-order (Morton) curve, so that points near each other in
+ * space are also near each other in memory. Passes over the reordered points then visit the same
+ * centers, bounds and tree nodes for long runs of consecutive points, which keeps them in cache.
+ *
+ * The Morton code of a point interleaves the bits of its coordinates, each quantized within the
+ * bounding box of all points. With more than 63 dimensions only the first 63 are used - the order
+ * is still valid, just less local.
+ *
+ * The permutation is kept, so labels of reordered points can be mapped back to the original
+ * order.
+ */
+public class MortonOrder {
+
+    // reordered points, with their weights
+    private final PointMatrix reordered;
+
+    // original index of every reordered point
+    private final int[] permutation;
+
+    private MortonOrder(PointMatrix reordered, int[] permutation) {
+        this.reordered = reordered;
+        this.permutation = permutation;
+    }
+
+    /**
+     * Reorder points along a Z-order curve.
+     *
+     * @param points data points, possibly weighted
+     * @return reordering of the points
+     */
+    public static MortonOrder of(PointMatrix points) {
+        int pointsCount = points.pointsCount();
+        int dimension = points.dimension();
+        double[] data = points.data();
+
+        // bounding box
+        int usedDimension = Math.min(dimension, 63);
+        double[] min = new double[usedDimension];
+        double[] max = new double[usedDimension];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < pointsCount; i++) {
+            for (int d = 0; d < usedDimension; d++) {
+                double value = data[i * dimension + d];
+                min[d] = Math.min(min[d], value);
+                max[d] = Math.max(max[d], value);
+            }
+        }
+
+        int bits = 63 / usedDimension;
+        double cells = (double) ((1L << bits) - 1);
+        long[] codes = new long[pointsCount];
+        long[] quantized = new long[usedDimension];
+        for (int i = 0; i < pointsCount; i++) {
+            for (int d = 0; d < usedDimension; d++) {
+                double range = max[d] - min[d];
+                quantized[d] = range > 0
+                        ? (long) ((data[i * dimension + d] - min[d]) / range * cells) : 0;
+            }
+            long code = 0;
+            for (int b = bits - 1; b >= 0; b--) {
+                for (int d = 0; d < usedDimension; d++) {
+                    code = (code << 1) | ((quantized[d] >>> b) & 1);
+                }
+            }
+            codes[i] = code;
+        }
+
+        int[] permutation = new int[pointsCount];
+        for (int i = 0; i < pointsCount; i++) {
+            permutation[i] = i;
+        }
+        GridAggregation.sort(permutation, new int[pointsCount], 0, pointsCount, codes, 1);
+
+        PointMatrix reordered = new PointMatrix(pointsCount, dimension);
+        double[] weights = points.weights() == null ? null : new double[pointsCount];
+        for (int i = 0; i < pointsCount; i++) {
+            points.copyPoint(permutation[i], reordered.data(), i * dimension);
+            if (weights != null) {
+                weights[i] = points.weight(permutation[i]);
+            }
+        }
+        reordered.setWeights(weights);
+        return new MortonOrder(reordered, permutation);
+    }
+
+    /**
+     * Get the reordered points.
+     *
+     * @return points in Z-order, with their weights
+     */
+    public PointMatrix reordered() {
+        return this.reordered;
+    }
+
+    /**
+     * Get the original index of every reordered point.
+     *
+     * @return permutation from reordered to original indices
+     */
+    public int[] permutation() {
+        return this.permutation.clone();
+    }
+
+    /**
+     * Map labels of reordered points back to the original order of points.
+     *
+     * @param reorderedLabels label of every reordered point
+     * @return label of every original point
+     */
+    public int[] restoreLabels(int[] reorderedLabels) {
+        int[] labels = new int[this.permutation.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[this.permutation[i]] = reorderedLabels[i];
+        }
+        return labels;
+    }
+}
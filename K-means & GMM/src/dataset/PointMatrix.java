@@ -0,0 +1,249 @@
+package dataset;
+
+import org.jfree.data.xy.XYSeries;
+
+/**
+ * A dense matrix of data points with any dimension. Coordinates are stored row by row in a single
+ * flat array of primitive doubles, so the j-th coordinate of the i-th point is at
+ * data[i * dimension + j]. Compared with boxed doubles in vectors or XY series, this keeps the
+ * points compact in memory and cheap to traverse.
+ *
+ * GMMDataset (XY series) is only used as an adapter for imaging - see fromGMMDataset(...) and
+ * toGMMDataset(...).
+ */
+public class PointMatrix implements PointSource {
+
+    // number of data points
+    private final int pointsCount;
+
+    // dimension of every data point
+    private final int dimension;
+
+    // row-major coordinates of data points
+    private final double[] data;
+
+    // weight of every data point; null if every point weighs 1
+    private double[] weights = null;
+
+    /**
+     * Construct a point matrix filled with zeros.
+     *
+     * @param pointsCount number of data points
+     * @param dimension   dimension of data points
+     */
+    public PointMatrix(int pointsCount, int dimension) {
+        this(new double[pointsCount * dimension], dimension);
+    }
+
+    /**
+     * Construct a point matrix that wraps (not copies) a row-major array of coordinates.
+     *
+     * @param data      row-major coordinates, whose length must be a multiple of dimension
+     * @param dimension dimension of data points
+     */
+    public PointMatrix(double[] data, int dimension) {
+        if (dimension <= 0 || data.length % dimension != 0) {
+            throw new IllegalArgumentException("Point matrix - length of data ("
+                    + data.length + ") does not match dimension (" + dimension + "). ");
+        }
+        this.data = data;
+        this.dimension = dimension;
+        this.pointsCount = data.length / dimension;
+    }
+
+    /**
+     * Construct a point matrix from a 2-dimension array, one row per point.
+     *
+     * @param points points[i][j] is the j-th coordinate of the i-th point
+     * @return point matrix holding a copy of the points
+     */
+    public static PointMatrix fromArray(double[][] points) {
+        int dimension = points.length == 0 ? 1 : points[0].length;
+        PointMatrix matrix = new PointMatrix(points.length, dimension);
+        for (int i = 0; i < points.length; i++) {
+            if (points[i].length != dimension) {
+                throw new IllegalArgumentException("Point matrix - point " + i + " has dimension "
+                        + points[i].length + " rather than " + dimension + ". ");
+            }
+            System.arraycopy(points[i], 0, matrix.data, i * dimension, dimension);
+        }
+        return matrix;
+    }
+
+    /**
+     * Read all points of a source into a point matrix. A point matrix is returned as it is, with
+     * its weights.
+     *
+     * @param source data points of any dimension
+     * @return point matrix holding the points
+     */
+    public static PointMatrix fromSource(PointSource source) {
+        if (source instanceof PointMatrix) {
+            return (PointMatrix) source;
+        }
+        PointMatrix matrix = new PointMatrix(source.pointsCount(), source.dimension());
+        source.readPoints(0, matrix.pointsCount, matrix.data);
+        return matrix;
+    }
+
+    /**
+     * Extract all data points of all XY series in a GMM dataset into a 2-dimension point matrix.
+     *
+     * @param dataset GMMDataset
+     * @return point matrix of x-y coordinates
+     */
+    public static PointMatrix fromGMMDataset(GMMDataset dataset) {
+        // count points first so that the array is allocated only once
+        int pointsCount = 0;
+        int seriesCount = dataset.seriesCount();
+        for (int i = 0; i < seriesCount; i++) {
+            pointsCount += dataset.getSeries(i).getItemCount();
+        }
+
+        PointMatrix matrix = new PointMatrix(pointsCount, 2);
+        int offset = 0;
+        for (int i = 0; i < seriesCount; i++) {
+            XYSeries xySeries = dataset.getSeries(i);
+            int itemsCount = xySeries.getItemCount();
+            for (int j = 0; j < itemsCount; j++) {
+                matrix.data[offset++] = xySeries.getX(j).doubleValue();
+                matrix.data[offset++] = xySeries.getY(j).doubleValue();
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Create a GMM dataset for imaging, with one XY series per cluster. Only the first 2
+     * dimensions of the points are drawn.
+     *
+     * @param labels        index of cluster of every point
+     * @param clusterNum    number of clusters
+     * @param seriesBaseKey base key for series
+     * @return dataset fitting for imaging
+     */
+    public GMMDataset toGMMDataset(int[] labels, int clusterNum, String seriesBaseKey) {
+        GMMDataset dataset = new GMMDataset();
+        XYSeries[] clusters = new XYSeries[clusterNum];
+        for (int k = 0; k < clusterNum; k++) {
+            // no sorting and no duplicate checking - adding points takes constant time
+            clusters[k] = new XYSeries(seriesBaseKey + "(" + k + ")", false, true);
+        }
+        for (int i = 0; i < this.pointsCount; i++) {
+            int offset = i * this.dimension;
+            double x = this.data[offset];
+            double y = this.dimension > 1 ? this.data[offset + 1] : 0;
+            clusters[labels[i]].add(x, y, false);
+        }
+        for (int k = 0; k < clusterNum; k++) {
+            dataset.addSeries(clusters[k]);
+        }
+        return dataset;
+    }
+
+    @Override
+    public int pointsCount() {
+        return this.pointsCount;
+    }
+
+    @Override
+    public int dimension() {
+        return this.dimension;
+    }
+
+    @Override
+    public void readPoints(int from, int count, double[] dest) {
+        System.arraycopy(this.data, from * this.dimension, dest, 0, count * this.dimension);
+    }
+
+    /**
+     * Give every data point a weight, e.g. the number of original points it stands for. Clustering
+     * treats a point of weight w as w points at the same place.
+     *
+     * @param weights non-negative weight of every point, or null if every point weighs 1
+     */
+    public void setWeights(double[] weights) {
+        if (weights != null && weights.length != this.pointsCount) {
+            throw new IllegalArgumentException("Point matrix - " + weights.length
+                    + " weights for " + this.pointsCount + " points. ");
+        }
+        this.weights = weights;
+    }
+
+    /**
+     * Get the weights of data points.
+     *
+     * @return weight of every point, or null if every point weighs 1
+     */
+    public double[] weights() {
+        return this.weights;
+    }
+
+    /**
+     * Get the weight of a data point.
+     *
+     * @param index index of point
+     * @return weight of the point
+     */
+    public double weight(int index) {
+        return this.weights == null ? 1 : this.weights[index];
+    }
+
+    /**
+     * Get the sum of weights of all data points.
+     *
+     * @return total weight
+     */
+    public double totalWeight() {
+        if (this.weights == null) {
+            return this.pointsCount;
+        }
+        double total = 0;
+        for (double weight : this.weights) {
+            total += weight;
+        }
+        return total;
+    }
+
+    /**
+     * Get the backing row-major array. Changes to the array are visible in this matrix.
+     *
+     * @return row-major coordinates of all points
+     */
+    public double[] data() {
+        return this.data;
+    }
+
+    /**
+     * Get a coordinate of a point.
+     *
+     * @param index index of point
+     * @param dim   index of dimension
+     * @return the dim-th coordinate of the index-th point
+     */
+    public double get(int index, int dim) {
+        return this.data[index * this.dimension + dim];
+    }
+
+    /**
+     * Set a coordinate of a point.
+     *
+     * @param index index of point
+     * @param dim   index of dimension
+     * @param value new value of the coordinate
+     */
+    public void set(int index, int dim, double value) {
+        this.data[index * this.dimension + dim] = value;
+    }
+
+    /**
+     * Copy the coordinates of a point into an array.
+     *
+     * @param index      index of point
+     * @param dest       destination array
+     * @param destOffset start position in the destination array
+     */
+    public void copyPoint(int index, double[] dest, int destOffset) {
+        System.arraycopy(this.data, index * this.dimension, dest, destOffset, this.dimension);
+    }
+}
@@ -0,0 +1,31 @@
+package dataset;
+
+/**
+ * A read-only source of data points that can be read chunk by chunk, without holding all
+ * points on the heap at once.
+ */
+public interface PointSource {
+
+    /**
+     * Get the number of data points.
+     *
+     * @return number of data points
+     */
+    int pointsCount();
+
+    /**
+     * Get the dimension of data points.
+     *
+     * @return dimension of data points
+     */
+    int dimension();
+
+    /**
+     * Read the coordinates of a range of continuous points into a row-major array.
+     *
+     * @param from  index of the first point
+     * @param count number of points to read
+     * @param dest  destination array, of length at least count * dimension
+     */
+    void readPoints(int from, int count, double[] dest);
+}
@@ -0,0 +1,473 @@
+package gmm;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import dataset.PointMatrix;
+
+/**
+ * Engine taking EM steps of GMM over a point matrix, in parallel. Like kmeans.ChunkedEngine, the
+ * points are split into chunks. Every chunk evaluates the responsibilities of its points (in log
+ * space, see GaussianComponent) and accumulates its own sufficient statistics per component:
+ *
+ * N_k = sum of w_n * \gama_nk,
+ * S_k = sum of w_n * \gama_nk * (x_n - \miu_k),
+ * Q_k = sum of w_n * \gama_nk * (x_n - \miu_k) * (x_n - \miu_k)^T,
+ *
+ * which are then merged pairwise along a fixed binary tree of chunks, and the M-step derives the
+ * new parameters from the merged statistics:
+ *
+ * \miu_k' = \miu_k + S_k / N_k, \Sigma_k' = Q_k / N_k - (S_k / N_k) * (S_k / N_k)^T,
+ * \pi_k' = N_k / sum of w_n.
+ *
+ * Moments are taken around the old means rather than the origin, so that the covariance does not
+ * lose precision by subtracting 2 large numbers when points are far from the origin.
+ *
+ * Within a chunk, points are taken in blocks of BLOCK_SIZE, so that the work stays efficient as
+ * the dimension grows. The densities of a block are evaluated component by component with
+ * GaussianComponent.logDensities(...), which reads the Cholesky factor once per block. The outer
+ * products of a block are added to Q_k row by row: a row of Q_k is updated by all points of the
+ * block while it stays in cache, instead of the whole of Q_k being swept once per point.
+ *
+ * The chunks and the merging tree only depend on the number of points, the dimension and the
+ * number of components, so the result is the same whatever the number of threads is.
+ */
+public class EmEngine implements AutoCloseable {
+
+    // a chunk holds at least this number of points (except the last one)
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    // points are split into no more than this number of chunks
+    private static final int MAX_CHUNKS = 256;
+
+    // sufficient statistics of all chunks take no more than this number of values (unless a
+    // single chunk needs more), which limits the number of chunks in high dimensions
+    private static final int MAX_STATISTICS = 1 << 22;
+
+    // number of points of a block within a chunk
+    private static final int BLOCK_SIZE = 64;
+
+    private final PointMatrix points;
+
+    // number of Gaussian components
+    private final int componentNum;
+
+    // number of points per chunk and number of chunks
+    private final int chunkSize;
+    private final int chunkCount;
+
+    // responsibilities of the last E-step, row-major (pointsCount * componentNum) - \gama_nk
+    private final double[] responsibilities;
+
+    // sufficient statistics of every chunk: N_k, S_k (componentNum * dimension), lower triangles
+    // of Q_k (componentNum * dimension * dimension) and log likelihood
+    private final double[][] partialCounts;
+    private final double[][] partialFirstMoments;
+    private final double[][] partialSecondMoments;
+    private final double[] partialLogLikelihood;
+
+    // per-chunk buffers of a block: log weighted densities (BLOCK_SIZE * componentNum), buffer of
+    // density evaluation (dimension * BLOCK_SIZE), differences from a mean (BLOCK_SIZE *
+    // dimension) and weighted responsibilities (BLOCK_SIZE) of the points given any
+    private final double[][] chunkLogs;
+    private final double[][] chunkBuffers;
+    private final double[][] chunkDiffs;
+    private final double[][] chunkWeights;
+
+    // components and log coefficients of the current step, compiled again in place every step
+    private final GaussianComponent[] components;
+    private final double[] logCoefficients;
+
+    // pool for running chunks in parallel; null when running sequentially
+    private ForkJoinPool pool = null;
+
+    /**
+     * Construct an EM engine on a point matrix.
+     *
+     * @param points       data points, possibly weighted
+     * @param componentNum number of Gaussian components
+     */
+    public EmEngine(PointMatrix points, int componentNum) {
+        if (componentNum <= 0) {
+            throw new IllegalArgumentException("EM engine - invalid number of components: "
+                    + componentNum + ". ");
+        }
+        this.points = points;
+        this.componentNum = componentNum;
+
+        int pointsCount = points.pointsCount();
+        int dimension = points.dimension();
+        long statisticsSize = (long) componentNum * (1 + dimension + dimension * dimension);
+        int maxChunks = (int) Math.max(1, Math.min(MAX_CHUNKS, MAX_STATISTICS / statisticsSize));
+        int chunkSize = (pointsCount + maxChunks - 1) / maxChunks;
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+        this.chunkCount = Math.max(1, (pointsCount + this.chunkSize - 1) / this.chunkSize);
+
+        int responsibilitiesSize;
+        int matricesSize;
+        int logsSize;
+        int blockSize;
+        try {
+            responsibilitiesSize = Math.multiplyExact(pointsCount, componentNum);
+            matricesSize = Math.multiplyExact(componentNum,
+                    Math.multiplyExact(dimension, dimension));
+            logsSize = Math.multiplyExact(BLOCK_SIZE, componentNum);
+            blockSize = Math.multiplyExact(BLOCK_SIZE, dimension);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("EM engine - " + pointsCount + " points of "
+                    + "dimension " + dimension + " and " + componentNum
+                    + " components are too many to fit in an array. ", e);
+        }
+
+        this.responsibilities = new double[responsibilitiesSize];
+        this.partialCounts = new double[this.chunkCount][componentNum];
+        this.partialFirstMoments = new double[this.chunkCount][componentNum * dimension];
+        this.partialSecondMoments = new double[this.chunkCount][matricesSize];
+        this.partialLogLikelihood = new double[this.chunkCount];
+        this.chunkLogs = new double[this.chunkCount][logsSize];
+        this.chunkBuffers = new double[this.chunkCount][blockSize];
+        this.chunkDiffs = new double[this.chunkCount][blockSize];
+        this.chunkWeights = new double[this.chunkCount][BLOCK_SIZE];
+        this.components = new GaussianComponent[componentNum];
+        for (int k = 0; k < componentNum; k++) {
+            this.components[k] = new GaussianComponent(dimension);
+        }
+        this.logCoefficients = new double[componentNum];
+    }
+
+    /**
+     * Set the number of threads used for taking a step. With 1 (the default) the step runs in the
+     * calling thread. The result is the same whatever the parallelism is.
+     *
+     * @param parallelism number of threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("EM engine - invalid parallelism: "
+                    + parallelism + ". ");
+        }
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+        this.pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Release the threads of the engine. The engine can still take steps, in the calling thread,
+     * until setParallelism(...) is called again.
+     */
+    @Override
+    public void close() {
+        if (this.pool != null) {
+            this.pool.shutdown();
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Get the number of threads used for taking a step.
+     *
+     * @return parallelism
+     */
+    public int parallelism() {
+        return this.pool == null ? 1 : this.pool.getParallelism();
+    }
+
+    /**
+     * Take an EM step: evaluate responsibilities with the current parameters, and then replace
+     * the parameters with their maximum likelihood estimates. A component given no responsibility
+     * at all keeps its mean and covariance, with a coefficient of 0.
+     *
+     * @param means        row-major means (componentNum * dimension), updated in place
+     * @param covariances  row-major covariance matrices (componentNum * dimension * dimension),
+     *                     updated in place
+     * @param coefficients coefficients of components, updated in place
+     * @return log likelihood of the parameters before the step
+     */
+    public double step(double[] means, double[] covariances, double[] coefficients) {
+        double logLikelihood = this.expectation(means, covariances, coefficients);
+
+        // M-step with the statistics of all chunks, which have been merged into chunk 0
+        int dimension = this.points.dimension();
+        double[] counts = this.partialCounts[0];
+        double[] firstMoments = this.partialFirstMoments[0];
+        double[] secondMoments = this.partialSecondMoments[0];
+        double totalWeight = 0;
+        for (int k = 0; k < this.componentNum; k++) {
+            totalWeight += counts[k];
+        }
+        for (int k = 0; k < this.componentNum; k++) {
+            double count = counts[k];
+            coefficients[k] = totalWeight > 0 ? count / totalWeight : 0;
+            if (!(count > 0)) {
+                continue;
+            }
+            int meanOffset = k * dimension;
+            int covOffset = k * dimension * dimension;
+            for (int i = 0; i < dimension; i++) {
+                double shiftI = firstMoments[meanOffset + i] / count;
+                for (int j = 0; j <= i; j++) {
+                    double shiftJ = firstMoments[meanOffset + j] / count;
+                    double value = secondMoments[covOffset + i * dimension + j] / count
+                            - shiftI * shiftJ;
+                    covariances[covOffset + i * dimension + j] = value;
+                    covariances[covOffset + j * dimension + i] = value;
+                }
+            }
+            for (int i = 0; i < dimension; i++) {
+                means[meanOffset + i] += firstMoments[meanOffset + i] / count;
+            }
+        }
+        return logLikelihood;
+    }
+
+    /**
+     * Evaluate responsibilities with the given parameters (an E-step) without changing them.
+     *
+     * @param means        row-major means (componentNum * dimension)
+     * @param covariances  row-major covariance matrices (componentNum * dimension * dimension)
+     * @param coefficients coefficients of components
+     * @return log likelihood of the parameters
+     */
+    public double expectation(double[] means, double[] covariances, double[] coefficients) {
+        int dimension = this.points.dimension();
+        int matrixSize = dimension * dimension;
+        for (int k = 0; k < this.componentNum; k++) {
+            this.components[k].compile(means, k * dimension, covariances, k * matrixSize);
+            this.logCoefficients[k] = Math.log(coefficients[k]);
+        }
+        if (this.pool == null) {
+            this.reduce(0, this.chunkCount, means);
+        } else {
+            this.pool.invoke(new ReduceTask(0, this.chunkCount, means));
+        }
+        return this.partialLogLikelihood[0];
+    }
+
+    /**
+     * Get the responsibilities of the last E-step. The array is reused by later steps.
+     *
+     * @return row-major responsibilities (pointsCount * componentNum) - \gama_nk
+     */
+    public double[] responsibilities() {
+        return this.responsibilities;
+    }
+
+    /**
+     * Get the number of Gaussian components.
+     *
+     * @return number of components
+     */
+    public int componentNum() {
+        return this.componentNum;
+    }
+
+    /**
+     * Evaluate responsibilities of the points of a chunk and accumulate its sufficient
+     * statistics, block by block.
+     *
+     * @param chunk index of chunk
+     * @param means row-major means, around which moments are taken
+     */
+    private void processChunk(int chunk, double[] means) {
+        double[] counts = this.partialCounts[chunk];
+        Arrays.fill(counts, 0);
+        Arrays.fill(this.partialFirstMoments[chunk], 0);
+        Arrays.fill(this.partialSecondMoments[chunk], 0);
+
+        int from = chunk * this.chunkSize;
+        int to = Math.min(from + this.chunkSize, this.points.pointsCount());
+        double logLikelihood = 0;
+        for (int blockFrom = from; blockFrom < to; blockFrom += BLOCK_SIZE) {
+            int blockTo = Math.min(blockFrom + BLOCK_SIZE, to);
+            logLikelihood += this.expectBlock(chunk, blockFrom, blockTo);
+            for (int k = 0; k < this.componentNum; k++) {
+                this.accumulateBlock(chunk, blockFrom, blockTo, k, means);
+            }
+        }
+        this.partialLogLikelihood[chunk] = logLikelihood;
+    }
+
+    /**
+     * Evaluate responsibilities of a block of points.
+     *
+     * @param chunk     index of chunk the block belongs to
+     * @param blockFrom index of the first point
+     * @param blockTo   index after the last point
+     * @return weighted log likelihood of the points
+     */
+    private double expectBlock(int chunk, int blockFrom, int blockTo) {
+        double[] logs = this.chunkLogs[chunk];
+        double[] buffer = this.chunkBuffers[chunk];
+        double[] data = this.points.data();
+        int dimension = this.points.dimension();
+        int componentNum = this.componentNum;
+        int blockLength = blockTo - blockFrom;
+
+        // log(\pi_k * N(x_n | \miu_k, \Sigma_k)), component by component
+        for (int k = 0; k < componentNum; k++) {
+            this.components[k].logDensities(data, blockFrom * dimension, blockLength, logs, k,
+                    componentNum, buffer);
+            double logCoefficient = this.logCoefficients[k];
+            for (int b = 0; b < blockLength; b++) {
+                logs[b * componentNum + k] += logCoefficient;
+            }
+        }
+
+        // log-sum-exp over components, and then responsibilities
+        double logLikelihood = 0;
+        for (int b = 0; b < blockLength; b++) {
+            int row = b * componentNum;
+            double maxLog = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < componentNum; k++) {
+                maxLog = Math.max(maxLog, logs[row + k]);
+            }
+            double sum = 0;
+            for (int k = 0; k < componentNum; k++) {
+                sum += Math.exp(logs[row + k] - maxLog);
+            }
+            double logPrior = maxLog + Math.log(sum);
+            int n = blockFrom + b;
+            logLikelihood += this.points.weight(n) * logPrior;
+
+            // subnormal responsibilities are flushed to 0 - arithmetic on them is many times
+            // slower, and they would not change any sum anyway
+            int gamaOffset = n * componentNum;
+            for (int k = 0; k < componentNum; k++) {
+                double gama = maxLog == Double.NEGATIVE_INFINITY ? 1.0 / componentNum
+                        : Math.exp(logs[row + k] - logPrior);
+                this.responsibilities[gamaOffset + k] = gama < Double.MIN_NORMAL ? 0 : gama;
+            }
+        }
+        return logLikelihood;
+    }
+
+    /**
+     * Accumulate the statistics of a component over a block of points, whose responsibilities
+     * have been evaluated. Points given no responsibility are skipped.
+     *
+     * @param chunk     index of chunk the block belongs to
+     * @param blockFrom index of the first point
+     * @param blockTo   index after the last point
+     * @param k         index of component
+     * @param means     row-major means, around which moments are taken
+     */
+    private void accumulateBlock(int chunk, int blockFrom, int blockTo, int k, double[] means) {
+        double[] counts = this.partialCounts[chunk];
+        double[] firstMoments = this.partialFirstMoments[chunk];
+        double[] secondMoments = this.partialSecondMoments[chunk];
+        double[] diffs = this.chunkDiffs[chunk];
+        double[] weights = this.chunkWeights[chunk];
+        double[] data = this.points.data();
+        int dimension = this.points.dimension();
+        int meanOffset = k * dimension;
+
+        // gather w_n * \gama_nk and x_n - \miu_k of the points of the block given any
+        int length = 0;
+        for (int n = blockFrom; n < blockTo; n++) {
+            double g = this.points.weight(n) * this.responsibilities[n * this.componentNum + k];
+            if (g == 0) {
+                continue;
+            }
+            counts[k] += g;
+            weights[length] = g;
+            int offset = n * dimension;
+            int diffOffset = length * dimension;
+            for (int i = 0; i < dimension; i++) {
+                double diff = data[offset + i] - means[meanOffset + i];
+                firstMoments[meanOffset + i] += g * diff;
+                diffs[diffOffset + i] = diff;
+            }
+            length++;
+        }
+
+        // add the outer products to the lower triangle of Q_k, row by row
+        int covOffset = k * dimension * dimension;
+        for (int i = 0; i < dimension; i++) {
+            int row = covOffset + i * dimension;
+            for (int b = 0; b < length; b++) {
+                int diffOffset = b * dimension;
+                double gDiff = weights[b] * diffs[diffOffset + i];
+                for (int j = 0; j <= i; j++) {
+                    secondMoments[row + j] += gDiff * diffs[diffOffset + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Process chunks [fromChunk, toChunk) sequentially and merge their statistics into chunk
+     * fromChunk.
+     *
+     * @param fromChunk index of the first chunk
+     * @param toChunk   index after the last chunk
+     * @param means     row-major means
+     */
+    private void reduce(int fromChunk, int toChunk, double[] means) {
+        if (toChunk - fromChunk == 1) {
+            this.processChunk(fromChunk, means);
+            return;
+        }
+        int midChunk = (fromChunk + toChunk) >>> 1;
+        this.reduce(fromChunk, midChunk, means);
+        this.reduce(midChunk, toChunk, means);
+        this.merge(fromChunk, midChunk);
+    }
+
+    /**
+     * Merge the statistics of a chunk into another chunk.
+     *
+     * @param target index of chunk to merge into
+     * @param source index of chunk to merge from
+     */
+    private void merge(int target, int source) {
+        add(this.partialCounts[target], this.partialCounts[source]);
+        add(this.partialFirstMoments[target], this.partialFirstMoments[source]);
+        add(this.partialSecondMoments[target], this.partialSecondMoments[source]);
+        this.partialLogLikelihood[target] += this.partialLogLikelihood[source];
+    }
+
+    /**
+     * Add an array to another one element by element.
+     *
+     * @param target array added to
+     * @param source array added
+     */
+    private static void add(double[] target, double[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += source[i];
+        }
+    }
+
+    /**
+     * Fork/join version of reduce(...) - the same tree of chunks, with both halves of a range run
+     * in parallel.
+     */
+    private class ReduceTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int fromChunk;
+        private final int toChunk;
+        private final double[] means;
+
+        ReduceTask(int fromChunk, int toChunk, double[] means) {
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.means = means;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.toChunk - this.fromChunk == 1) {
+                processChunk(this.fromChunk, this.means);
+                return;
+            }
+            int midChunk = (this.fromChunk + this.toChunk) >>> 1;
+            invokeAll(new ReduceTask(this.fromChunk, midChunk, this.means),
+                    new ReduceTask(midChunk, this.toChunk, this.means));
+            merge(this.fromChunk, midChunk);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package gmm;
+
+import Jama.Matrix;
+
+/**
+ * A Gaussian component of GMM compiled for evaluating densities of many points. The Cholesky
+ * factor L of the covariance matrix (\Sigma = L * L^T), its log-determinant and the normalizing
+ * constant are calculated once, so the density of a point only takes a forward substitution:
+ *
+ * log N(x | \miu, \Sigma) = logNormalizer - |L^-1 * (x - \miu)|^2 / 2
+ * logNormalizer = -(D * log(2 * \pi) + log(det(\Sigma))) / 2, log(det(\Sigma)) = 2 * sum(log(L_ii))
+ *
+ * rather than a determinant and an inverse of the covariance matrix for every point.
+ *
+ * A component can be compiled again in place with new parameters (see compile(...)), so that an
+ * EM step reuses its components instead of allocating new ones.
+ */
+public class GaussianComponent {
+
+    // relative amount added to the diagonal of a covariance matrix that is not positive definite
+    private static final double RIDGE = 1e-9;
+
+    private final int dimension;
+
+    // mean - \miu
+    private final double[] mean;
+
+    // lower-triangular Cholesky factor of the covariance matrix, row-major (dimension * dimension)
+    private final double[] cholesky;
+
+    // log(det(\Sigma))
+    private double logDeterminant = Double.NaN;
+
+    // -(D * log(2 * \pi) + log(det(\Sigma))) / 2
+    private double logNormalizer = Double.NaN;
+
+    /**
+     * Compile a component. A covariance matrix that is not positive definite (e.g. of a component
+     * collapsed onto a few points) is made so by adding a small ridge to its diagonal.
+     *
+     * @param mean       mean - \miu
+     * @param covariance covariance matrix, row-major (dimension * dimension); only the lower
+     *                   triangle is read
+     * @param dimension  dimension of points
+     */
+    public GaussianComponent(double[] mean, double[] covariance, int dimension) {
+        this(dimension);
+        if (mean.length != dimension || covariance.length != dimension * dimension) {
+            throw new IllegalArgumentException("Gaussian component - mean of length "
+                    + mean.length + " and covariance of length " + covariance.length
+                    + " do not match dimension " + dimension + ". ");
+        }
+        this.compile(mean, 0, covariance, 0);
+    }
+
+    /**
+     * Construct a component to be compiled later by compile(...).
+     *
+     * @param dimension dimension of points
+     */
+    public GaussianComponent(int dimension) {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("Gaussian component - invalid dimension: "
+                    + dimension + ". ");
+        }
+        this.dimension = dimension;
+        this.mean = new double[dimension];
+        this.cholesky = new double[dimension * dimension];
+    }
+
+    /**
+     * Compile the component in place with a new mean and covariance matrix, read from packed
+     * arrays of parameters of many components. A covariance matrix that is not positive definite
+     * is made so like in the constructor.
+     *
+     * @param means            array containing the mean
+     * @param meanOffset       offset of the mean in means
+     * @param covariances      array containing the row-major covariance matrix; only the lower
+     *                         triangle is read
+     * @param covarianceOffset offset of the covariance matrix in covariances
+     */
+    public void compile(double[] means, int meanOffset, double[] covariances,
+                        int covarianceOffset) {
+        int dimension = this.dimension;
+        if (meanOffset < 0 || covarianceOffset < 0 || meanOffset + dimension > means.length
+                || covarianceOffset + dimension * dimension > covariances.length) {
+            throw new IllegalArgumentException("Gaussian component - parameters of dimension "
+                    + dimension + " out of arrays of length " + means.length + " / "
+                    + covariances.length + ". ");
+        }
+        System.arraycopy(means, meanOffset, this.mean, 0, dimension);
+
+        double ridge = 0;
+        double scale = 0;
+        for (int d = 0; d < dimension; d++) {
+            scale = Math.max(scale, Math.abs(covariances[covarianceOffset + d * dimension + d]));
+        }
+        while (!this.decompose(covariances, covarianceOffset, ridge)) {
+            ridge = ridge == 0 ? RIDGE * Math.max(scale, Double.MIN_NORMAL) : ridge * 10;
+            if (Double.isInfinite(ridge)) {
+                throw new IllegalArgumentException("Gaussian component - covariance matrix "
+                        + "can not be made positive definite. ");
+            }
+        }
+
+        double logDeterminant = 0;
+        for (int d = 0; d < dimension; d++) {
+            logDeterminant += Math.log(this.cholesky[d * dimension + d]);
+        }
+        this.logDeterminant = 2 * logDeterminant;
+        this.logNormalizer = -(dimension * Math.log(2 * Math.PI) + this.logDeterminant) / 2;
+    }
+
+    /**
+     * Compile a component from Jama matrices.
+     *
+     * @param mean       mean - column vector D * 1
+     * @param covariance covariance matrix - D * D
+     * @return compiled component
+     */
+    public static GaussianComponent of(Matrix mean, Matrix covariance) {
+        return new GaussianComponent(mean.getColumnPackedCopy(),
+                covariance.getRowPackedCopy(), mean.getRowDimension());
+    }
+
+    /**
+     * Calculate the log density of a point.
+     *
+     * @param data   array containing the point
+     * @param offset offset of the point in data
+     * @param buffer buffer of at least dimension values, overwritten
+     * @return log N(x | \miu, \Sigma)
+     */
+    public double logDensity(double[] data, int offset, double[] buffer) {
+        return this.logNormalizer - this.mahalanobis(data, offset, buffer) / 2;
+    }
+
+    /**
+     * Calculate the log densities of consecutive points. This is the blocked form of
+     * logDensity(...): L * Y = X - \miu is solved for all the points at once, dimension by
+     * dimension, so every element of L is read once per block rather than once per point, and the
+     * innermost loops run over the points of the block without depending on each other.
+     *
+     * @param data       array containing the points, row-major
+     * @param offset     offset of the first point in data
+     * @param count      number of points
+     * @param dest       receives log N(x | \miu, \Sigma) of the points
+     * @param destOffset index of the log density of the first point in dest
+     * @param destStride distance between log densities of consecutive points in dest
+     * @param buffer     buffer of at least dimension * count values, overwritten
+     */
+    public void logDensities(double[] data, int offset, int count, double[] dest, int destOffset,
+                             int destStride, double[] buffer) {
+        int dimension = this.dimension;
+        for (int b = 0; b < count; b++) {
+            dest[destOffset + b * destStride] = 0;
+        }
+        for (int i = 0; i < dimension; i++) {
+            // row i of Y, i.e. the i-th coordinate of y of every point
+            int rowY = i * count;
+            int rowL = i * dimension;
+            double mean = this.mean[i];
+            for (int b = 0; b < count; b++) {
+                buffer[rowY + b] = data[offset + b * dimension + i] - mean;
+            }
+            for (int j = 0; j < i; j++) {
+                double factor = this.cholesky[rowL + j];
+                int rowJ = j * count;
+                for (int b = 0; b < count; b++) {
+                    buffer[rowY + b] -= factor * buffer[rowJ + b];
+                }
+            }
+            double diagonal = this.cholesky[rowL + i];
+            for (int b = 0; b < count; b++) {
+                double value = buffer[rowY + b] / diagonal;
+                buffer[rowY + b] = value;
+                dest[destOffset + b * destStride] += value * value;
+            }
+        }
+        for (int b = 0; b < count; b++) {
+            int index = destOffset + b * destStride;
+            dest[index] = this.logNormalizer - dest[index] / 2;
+        }
+    }
+
+    /**
+     * Calculate the density of a point.
+     *
+     * @param data   array containing the point
+     * @param offset offset of the point in data
+     * @param buffer buffer of at least dimension values, overwritten
+     * @return N(x | \miu, \Sigma)
+     */
+    public double density(double[] data, int offset, double[] buffer) {
+        return Math.exp(this.logDensity(data, offset, buffer));
+    }
+
+    /**
+     * Calculate the squared Mahalanobis distance (x - \miu)^T * \Sigma^-1 * (x - \miu) of a point,
+     * by solving L * y = x - \miu.
+     *
+     * @param data   array containing the point
+     * @param offset offset of the point in data
+     * @param buffer buffer of at least dimension values, receives y
+     * @return squared Mahalanobis distance, |y|^2
+     */
+    public double mahalanobis(double[] data, int offset, double[] buffer) {
+        int dimension = this.dimension;
+        double sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            double value = data[offset + i] - this.mean[i];
+            int row = i * dimension;
+            for (int j = 0; j < i; j++) {
+                value -= this.cholesky[row + j] * buffer[j];
+            }
+            value /= this.cholesky[row + i];
+            buffer[i] = value;
+            sum += value * value;
+        }
+        return sum;
+    }
+
+    /**
+     * Get the dimension of points.
+     *
+     * @return dimension
+     */
+    public int dimension() {
+        return this.dimension;
+    }
+
+    /**
+     * Get a copy of the mean.
+     *
+     * @return mean - \miu
+     */
+    public double[] mean() {
+        return this.mean.clone();
+    }
+
+    /**
+     * Get the log-determinant of the covariance matrix.
+     *
+     * @return log(det(\Sigma))
+     */
+    public double logDeterminant() {
+        return this.logDeterminant;
+    }
+
+    /**
+     * Get the log of the normalizing constant of the density.
+     *
+     * @return -(D * log(2 * \pi) + log(det(\Sigma))) / 2
+     */
+    public double logNormalizer() {
+        return this.logNormalizer;
+    }
+
+    /**
+     * Cholesky decomposition (Cholesky-Banachiewicz, row by row) of the covariance matrix plus a
+     * ridge on its diagonal.
+     *
+     * @param covariance covariance matrix, row-major
+     * @param offset     offset of the covariance matrix in the array
+     * @param ridge      amount added to the diagonal
+     * @return whether the matrix is positive definite
+     */
+    private boolean decompose(double[] covariance, int offset, double ridge) {
+        int dimension = this.dimension;
+        for (int i = 0; i < dimension; i++) {
+            int rowI = i * dimension;
+            for (int j = 0; j <= i; j++) {
+                int rowJ = j * dimension;
+                double sum = covariance[offset + rowI + j];
+                for (int l = 0; l < j; l++) {
+                    sum -= this.cholesky[rowI + l] * this.cholesky[rowJ + l];
+                }
+                if (i == j) {
+                    sum += ridge;
+                    // also fails on NaN
+                    if (!(sum > 0)) {
+                        return false;
+                    }
+                    this.cholesky[rowI + i] = Math.sqrt(sum);
+                } else {
+                    this.cholesky[rowI + j] = sum / this.cholesky[rowJ + j];
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,299 @@
+package kmeans;
+
+import java.util.Random;
+
+import dataset.PointMatrix;
+
+/**
+ * K-means within a wall-clock budget, for interactive use. Centers are refined progressively:
+ * first with Lloyd steps on a small random sample of the points, then on samples of doubling size
+ * and finally on all points, every stage starting from the centers of the previous one. A stage
+ * moves on once its inertia stops decreasing by more than a relative tolerance, which is never
+ * the case on the first step of a stage, as there is nothing to compare it with yet.
+ *
+ * A step is only started if it is expected to end before the deadline, judging by the time per
+ * point of the steps so far, so the run stops cleanly between steps with a consistent set of
+ * centers. Every step publishes its centers to an optional listener.
+ */
+public class AnytimeKmeans {
+
+    // size of the first sample, relative to the number of centers
+    private static final int SAMPLE_PER_CENTER = 32;
+
+    // smallest size of the first sample
+    private static final int MIN_SAMPLE = 1024;
+
+    // a stage ends once a step decreases inertia by less than this fraction
+    private static final double STAGE_TOLERANCE = 1e-3;
+
+    // the run ends once a step on all points decreases inertia by less than this fraction
+    private static final double TOLERANCE = 1e-6;
+
+    private final PointMatrix points;
+
+    // which represents the value of "K" in "K-means"
+    private final int centerNum;
+
+    private final Random rand;
+
+    // receives the centers of every step; may be null
+    private Listener listener = null;
+
+    /**
+     * Receives intermediate results of an anytime run. Called on the thread of run(...).
+     */
+    public interface Listener {
+
+        /**
+         * Called after every step.
+         *
+         * @param centers      current centers, row-major (centerNum * dimension); a copy
+         * @param meanInertia  within-cluster sum of squares per unit of weight on the current
+         *                     sample, comparable between samples of different sizes
+         * @param sampleSize   number of points the step ran on
+         * @param elapsedNanos time since the run started
+         */
+        void progress(double[] centers, double meanInertia, int sampleSize, long elapsedNanos);
+    }
+
+    /**
+     * Construct anytime K-means.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     * @param seed      seed for sampling and choosing initial centers
+     */
+    public AnytimeKmeans(PointMatrix points, int centerNum, long seed) {
+        if (centerNum <= 0 || centerNum > points.pointsCount()) {
+            throw new IllegalArgumentException("Anytime K-means - invalid number of centers: "
+                    + centerNum + " (points count: " + points.pointsCount() + "). ");
+        }
+        this.points = points;
+        this.centerNum = centerNum;
+        this.rand = new Random(seed);
+    }
+
+    /**
+     * Set the listener of intermediate results.
+     *
+     * @param listener listener, or null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Refine centers until the budget runs out or K-means converges on all points. Initial
+     * centers are always chosen, even if that alone takes longer than the budget.
+     *
+     * @param budgetNanos wall-clock budget in nanoseconds
+     * @return best centers reached
+     */
+    public Result run(long budgetNanos) {
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        int pointsCount = this.points.pointsCount();
+
+        // the first sizes of a lazily shuffled permutation form nested random samples
+        int[] permutation = new int[pointsCount];
+        for (int i = 0; i < pointsCount; i++) {
+            permutation[i] = i;
+        }
+        int sampleSize = Math.min(pointsCount,
+                Math.max(MIN_SAMPLE, SAMPLE_PER_CENTER * this.centerNum));
+        this.shuffle(permutation, 0, sampleSize);
+        PointMatrix sample = this.sample(permutation, sampleSize);
+        double[] centers = new KmeansPlusPlusInitializer().initCenters(sample, this.centerNum,
+                this.rand);
+
+        // time per point of a step, measured on the latest step
+        double nanosPerPoint = Double.NaN;
+        double meanInertia = Double.NaN;
+        // size of the sample of the latest step; 0 until a step has been taken
+        int stepSampleSize = 0;
+        int steps = 0;
+        boolean converged = false;
+        while (true) {
+            LloydEngine engine = new LloydEngine(sample, this.centerNum);
+            int[] labels = new int[sampleSize];
+            double totalWeight = sample.totalWeight();
+            double lastInertia = Double.NaN;
+            double tolerance = sampleSize == pointsCount ? TOLERANCE : STAGE_TOLERANCE;
+            boolean outOfTime = false;
+            while (true) {
+                long now = System.nanoTime();
+                if (!Double.isNaN(nanosPerPoint)
+                        && now + nanosPerPoint * sampleSize > deadline) {
+                    outOfTime = true;
+                    break;
+                }
+                double[] next = centers.clone();
+                double inertia = engine.step(next, labels);
+                long stepNanos = System.nanoTime() - now;
+                nanosPerPoint = (double) stepNanos / sampleSize;
+                steps++;
+                stepSampleSize = sampleSize;
+                // the inertia is measured against the centers before the step
+                meanInertia = totalWeight > 0 ? inertia / totalWeight : 0;
+                boolean stalled = !Double.isNaN(lastInertia)
+                        && lastInertia - inertia <= tolerance * lastInertia;
+                lastInertia = inertia;
+                centers = next;
+                if (this.listener != null) {
+                    this.listener.progress(centers.clone(), meanInertia, sampleSize,
+                            System.nanoTime() - start);
+                }
+                if (stalled) {
+                    break;
+                }
+            }
+            if (outOfTime) {
+                break;
+            }
+            if (sampleSize == pointsCount) {
+                converged = true;
+                break;
+            }
+
+            // grow the sample if a step on it would still fit in the budget
+            int nextSize = (int) Math.min(pointsCount, 2L * sampleSize);
+            if (System.nanoTime() + nanosPerPoint * nextSize > deadline) {
+                break;
+            }
+            if (nextSize == pointsCount) {
+                sample = this.points;
+            } else {
+                this.shuffle(permutation, sampleSize, nextSize);
+                sample = this.sample(permutation, nextSize);
+            }
+            sampleSize = nextSize;
+        }
+        return new Result(centers, meanInertia, stepSampleSize, steps, converged,
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Extend a partial Fisher-Yates shuffle, so that permutation[0, to) is a random sample.
+     *
+     * @param permutation permutation of point indices, shuffled up to from
+     * @param from        first position not shuffled yet
+     * @param to          position after the last one to shuffle
+     */
+    private void shuffle(int[] permutation, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int j = i + this.rand.nextInt(permutation.length - i);
+            int temp = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = temp;
+        }
+    }
+
+    /**
+     * Copy a sample of points, with their weights.
+     *
+     * @param permutation indices of points, the first size of them sampled
+     * @param size        size of the sample
+     * @return sampled points
+     */
+    private PointMatrix sample(int[] permutation, int size) {
+        int dimension = this.points.dimension();
+        PointMatrix sample = new PointMatrix(size, dimension);
+        double[] weights = this.points.weights() == null ? null : new double[size];
+        for (int i = 0; i < size; i++) {
+            this.points.copyPoint(permutation[i], sample.data(), i * dimension);
+            if (weights != null) {
+                weights[i] = this.points.weight(permutation[i]);
+            }
+        }
+        sample.setWeights(weights);
+        return sample;
+    }
+
+    /**
+     * Result of an anytime run.
+     */
+    public static class Result {
+
+        // row-major matrix of centers (centerNum * dimension)
+        private final double[] centers;
+
+        // within-cluster sum of squares per unit of weight of the last step, on its sample
+        private final double meanInertia;
+
+        // number of points of the last step
+        private final int sampleSize;
+
+        // steps taken over all samples
+        private final int steps;
+
+        // whether K-means converged on all points before the deadline
+        private final boolean converged;
+
+        // wall-clock time of the run
+        private final long nanos;
+
+        private Result(double[] centers, double meanInertia, int sampleSize, int steps,
+                       boolean converged, long nanos) {
+            this.centers = centers;
+            this.meanInertia = meanInertia;
+            this.sampleSize = sampleSize;
+            this.steps = steps;
+            this.converged = converged;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Get a copy of the centers reached.
+         *
+         * @return row-major matrix of centers (centerNum * dimension)
+         */
+        public double[] centers() {
+            return this.centers.clone();
+        }
+
+        /**
+         * Get the within-cluster sum of squares per unit of weight of the last step.
+         *
+         * @return mean inertia on the last sample, or NaN if no step has been taken
+         */
+        public double meanInertia() {
+            return this.meanInertia;
+        }
+
+        /**
+         * Get the number of points the last step ran on.
+         *
+         * @return size of the sample of the last step, or 0 if no step has been taken
+         */
+        public int sampleSize() {
+            return this.sampleSize;
+        }
+
+        /**
+         * Get the number of steps taken over all samples.
+         *
+         * @return steps taken
+         */
+        public int steps() {
+            return this.steps;
+        }
+
+        /**
+         * Check whether K-means converged on all points before the deadline.
+         *
+         * @return whether the run converged
+         */
+        public boolean converged() {
+            return this.converged;
+        }
+
+        /**
+         * Get the wall-clock time of the run.
+         *
+         * @return time in nanoseconds
+         */
+        public long nanos() {
+            return this.nanos;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package kmeans;
+
+import org.jfree.data.xy.XYSeries;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import dataset.GMMDataset;
+import dataset.PointMatrix;
+
+/**
+ * Bisecting (hierarchical) K-means for a large number of centers. Starting from a single cluster
+ * of all points, the cluster with the highest within-cluster sum of squares (SSE) is repeatedly
+ * split in two with 2-means, until there are centerNum clusters. Every split only touches the
+ * points of one cluster, so fitting takes about O(N * log K) distance calculations per 2-means
+ * step rather than O(N * K).
+ *
+ * The splits form a binary tree whose leaves are the final clusters. A new point is assigned by
+ * walking down the tree to the nearer of the 2 children at every node, which takes O(log K)
+ * distance calculations for a balanced tree. Like the splits, the walk only compares the 2
+ * children, so it may end at a leaf that is not the very nearest center. The children of a split
+ * keep the 2-means centers their points were last assigned against for the walk, so predict(...)
+ * of a fitted point gives its label. The centers and the inertia reported are those of the points
+ * finally in every leaf - their weighted means and their SSE around them.
+ */
+public class BisectingKmeans {
+
+    // maximum number of 2-means steps for a split
+    private static final int SPLIT_STEPS = 20;
+
+    // a cluster whose split fails (2-means leaves a side empty) is tried this many times, with
+    // other random seeds, before it is kept as a leaf
+    private static final int SPLIT_ATTEMPTS = 3;
+
+    private final PointMatrix points;
+
+    // which represents the value of "K" in "K-means"
+    private final int centerNum;
+
+    private final Random rand;
+
+    // indices of points, grouped so that the points of every node are contiguous
+    private final int[] order;
+
+    // side (0 or 1) of every point in the current split
+    private final byte[] sides;
+
+    // range of every node in order[], its children (-1 for leaves) and its index of leaf
+    private final int[] nodeFrom;
+    private final int[] nodeTo;
+    private final int[] nodeLeft;
+    private final int[] nodeRight;
+    private final int[] nodeLeaf;
+
+    // center every node is compared by when walking down the tree - the 2-means center of its
+    // split (row-major, nodes * dimension)
+    private final double[] nodeCenters;
+
+    // weighted mean of the points of every node (row-major, nodes * dimension) and their SSE
+    // around it
+    private final double[] nodeMeans;
+    private final double[] nodeSse;
+
+    // number of nodes in the tree
+    private int nodeCount = 0;
+
+    // row-major matrix of the centers of leaves (clusters * dimension)
+    private double[] centers = null;
+
+    // index of the cluster of every point
+    private int[] labels = null;
+
+    // sum of SSE of all leaves
+    private double inertia = Double.NaN;
+
+    // buffers of a split: 2 centers, their sums and weights
+    private final double[] splitCenters;
+    private final double[] splitSums;
+    private final double[] splitWeights = new double[2];
+
+    /**
+     * Construct bisecting K-means.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     * @param seed      seed for initializing the splits
+     */
+    public BisectingKmeans(PointMatrix points, int centerNum, long seed) {
+        if (centerNum <= 0 || centerNum > points.pointsCount()) {
+            throw new IllegalArgumentException("Bisecting K-means - invalid number of centers: "
+                    + centerNum + " (points count: " + points.pointsCount() + "). ");
+        }
+        this.points = points;
+        this.centerNum = centerNum;
+        this.rand = new Random(seed);
+
+        int pointsCount = points.pointsCount();
+        int dimension = points.dimension();
+        this.order = new int[pointsCount];
+        this.sides = new byte[pointsCount];
+
+        int maxNodes = 2 * centerNum - 1;
+        this.nodeFrom = new int[maxNodes];
+        this.nodeTo = new int[maxNodes];
+        this.nodeLeft = new int[maxNodes];
+        this.nodeRight = new int[maxNodes];
+        this.nodeLeaf = new int[maxNodes];
+        this.nodeCenters = new double[maxNodes * dimension];
+        this.nodeMeans = new double[maxNodes * dimension];
+        this.nodeSse = new double[maxNodes];
+        this.splitCenters = new double[2 * dimension];
+        this.splitSums = new double[2 * dimension];
+    }
+
+    /**
+     * Split clusters until there are centerNum of them, or until no cluster can be split (all its
+     * points are at the same place).
+     */
+    public void fit() {
+        int pointsCount = this.points.pointsCount();
+        for (int i = 0; i < pointsCount; i++) {
+            this.order[i] = i;
+        }
+        this.nodeCount = 0;
+        int root = this.addNode(0, pointsCount, null, 0);
+
+        // clusters that can be split, the one of the highest SSE first
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                (a, b) -> Double.compare(this.nodeSse[b], this.nodeSse[a]));
+        if (this.nodeSse[root] > 0) {
+            queue.add(root);
+        }
+        int leafCount = 1;
+        while (leafCount < this.centerNum && !queue.isEmpty()) {
+            int node = queue.poll();
+            boolean split = false;
+            for (int attempt = 0; attempt < SPLIT_ATTEMPTS && !split; attempt++) {
+                split = this.split(node);
+            }
+            if (!split) {
+                // kept as a leaf
+                continue;
+            }
+            leafCount++;
+            if (this.nodeSse[this.nodeLeft[node]] > 0) {
+                queue.add(this.nodeLeft[node]);
+            }
+            if (this.nodeSse[this.nodeRight[node]] > 0) {
+                queue.add(this.nodeRight[node]);
+            }
+        }
+
+        // number the leaves and label their points
+        int dimension = this.points.dimension();
+        this.centers = new double[leafCount * dimension];
+        this.labels = new int[pointsCount];
+        this.inertia = 0;
+        int leaf = 0;
+        for (int node = 0; node < this.nodeCount; node++) {
+            if (this.nodeLeft[node] >= 0) {
+                this.nodeLeaf[node] = -1;
+                continue;
+            }
+            this.nodeLeaf[node] = leaf;
+            System.arraycopy(this.nodeMeans, node * dimension, this.centers, leaf * dimension,
+                    dimension);
+            for (int i = this.nodeFrom[node]; i < this.nodeTo[node]; i++) {
+                this.labels[this.order[i]] = leaf;
+            }
+            this.inertia += this.nodeSse[node];
+            leaf++;
+        }
+    }
+
+    /**
+     * Assign a point to a cluster by walking down the tree of splits.
+     *
+     * @param data   array containing the point
+     * @param offset offset of the point in data
+     * @return index of cluster
+     */
+    public int predict(double[] data, int offset) {
+        if (this.centers == null) {
+            throw new IllegalStateException("Bisecting K-means - not fitted yet. ");
+        }
+        int dimension = this.points.dimension();
+        int node = 0;
+        while (this.nodeLeft[node] >= 0) {
+            int left = this.nodeLeft[node];
+            int right = this.nodeRight[node];
+            double toLeft = KmeansPlusPlusInitializer.squaredDistance(data, offset,
+                    this.nodeCenters, left * dimension, dimension);
+            double toRight = KmeansPlusPlusInitializer.squaredDistance(data, offset,
+                    this.nodeCenters, right * dimension, dimension);
+            node = toRight < toLeft ? right : left;
+        }
+        return this.nodeLeaf[node];
+    }
+
+    /**
+     * Assign points to clusters by walking down the tree of splits.
+     *
+     * @param newPoints points of the same dimension as the fitted points
+     * @return index of cluster of every point
+     */
+    public int[] predict(PointMatrix newPoints) {
+        int dimension = this.points.dimension();
+        if (newPoints.dimension() != dimension) {
+            throw new IllegalArgumentException("Bisecting K-means - dimension of points ("
+                    + newPoints.dimension() + ") does not match " + dimension + ". ");
+        }
+        int[] predicted = new int[newPoints.pointsCount()];
+        double[] data = newPoints.data();
+        for (int i = 0; i < predicted.length; i++) {
+            predicted[i] = this.predict(data, i * dimension);
+        }
+        return predicted;
+    }
+
+    /**
+     * Get a copy of the centers of clusters.
+     *
+     * @return row-major matrix of centers (clusters * dimension)
+     */
+    public double[] getCenters() {
+        return this.centers.clone();
+    }
+
+    /**
+     * Get a copy of the labels of the fitted points.
+     *
+     * @return index of cluster of every point
+     */
+    public int[] getLabels() {
+        return this.labels.clone();
+    }
+
+    /**
+     * Get the within-cluster sum of squares of all clusters.
+     *
+     * @return inertia, or NaN if not fitted yet
+     */
+    public double inertia() {
+        return this.inertia;
+    }
+
+    /**
+     * Get the number of clusters, which is less than centerNum only if there were not enough
+     * distinct points.
+     *
+     * @return number of clusters
+     */
+    public int clusterNum() {
+        return this.centers == null ? 0 : this.centers.length / this.points.dimension();
+    }
+
+    /**
+     * Create a dataset with clustered points and centers for imaging.
+     *
+     * @return dataset fitting for imaging
+     */
+    public GMMDataset getDatasetForImaging() {
+        int clusterNum = this.clusterNum();
+        GMMDataset dataset = this.points.toGMMDataset(this.labels, clusterNum, "bisected");
+        int dimension = this.points.dimension();
+        XYSeries centerSeries = new XYSeries("centers");
+        for (int i = 0; i < clusterNum; i++) {
+            double x = this.centers[i * dimension];
+            double y = dimension > 1 ? this.centers[i * dimension + 1] : 0;
+            centerSeries.add(x, y);
+        }
+        dataset.addSeries(centerSeries);
+        return dataset;
+    }
+
+    /**
+     * Add a node for a range of order[], and calculate the weighted mean of its points and their
+     * SSE around it.
+     *
+     * @param from         first position in order[]
+     * @param to           position after the last one in order[]
+     * @param center       array containing the center the node is compared by when walking down
+     *                     the tree, or null to use the mean
+     * @param centerOffset offset of the center in the array
+     * @return index of the new node
+     */
+    private int addNode(int from, int to, double[] center, int centerOffset) {
+        int node = this.nodeCount++;
+        int dimension = this.points.dimension();
+        double[] data = this.points.data();
+        this.nodeFrom[node] = from;
+        this.nodeTo[node] = to;
+        this.nodeLeft[node] = -1;
+        this.nodeRight[node] = -1;
+
+        int nodeOffset = node * dimension;
+        double totalWeight = 0;
+        for (int d = 0; d < dimension; d++) {
+            this.nodeMeans[nodeOffset + d] = 0;
+        }
+        for (int i = from; i < to; i++) {
+            int point = this.order[i];
+            double weight = this.points.weight(point);
+            for (int d = 0; d < dimension; d++) {
+                this.nodeMeans[nodeOffset + d] += weight * data[point * dimension + d];
+            }
+            totalWeight += weight;
+        }
+        if (totalWeight > 0) {
+            for (int d = 0; d < dimension; d++) {
+                this.nodeMeans[nodeOffset + d] /= totalWeight;
+            }
+        } else {
+            this.points.copyPoint(this.order[from], this.nodeMeans, nodeOffset);
+        }
+        if (center != null) {
+            System.arraycopy(center, centerOffset, this.nodeCenters, nodeOffset, dimension);
+        } else {
+            System.arraycopy(this.nodeMeans, nodeOffset, this.nodeCenters, nodeOffset, dimension);
+        }
+
+        double sse = 0;
+        for (int i = from; i < to; i++) {
+            int point = this.order[i];
+            sse += this.points.weight(point) * KmeansPlusPlusInitializer.squaredDistance(data,
+                    point * dimension, this.nodeMeans, nodeOffset, dimension);
+        }
+        this.nodeSse[node] = sse;
+        return node;
+    }
+
+    /**
+     * Split a leaf in two with 2-means, and add the 2 halves as its children.
+     *
+     * @param node index of node
+     * @return whether the node has been split; false if 2-means left one side empty
+     */
+    private boolean split(int node) {
+        int from = this.nodeFrom[node];
+        int to = this.nodeTo[node];
+        int dimension = this.points.dimension();
+        double[] data = this.points.data();
+        double[] c = this.splitCenters;
+
+        // K-means++ seeding of 2 centers: a random point, then a point chosen by D^2
+        this.points.copyPoint(this.order[from + this.rand.nextInt(to - from)], c, 0);
+        double total = 0;
+        for (int i = from; i < to; i++) {
+            int point = this.order[i];
+            total += this.points.weight(point)
+                    * KmeansPlusPlusInitializer.squaredDistance(data, point * dimension, c, 0,
+                    dimension);
+        }
+        if (total == 0) {
+            return false;
+        }
+        double threshold = this.rand.nextDouble() * total;
+        int second = to - 1;
+        for (int i = from; i < to; i++) {
+            int point = this.order[i];
+            threshold -= this.points.weight(point)
+                    * KmeansPlusPlusInitializer.squaredDistance(data, point * dimension, c, 0,
+                    dimension);
+            if (threshold < 0) {
+                second = i;
+                break;
+            }
+        }
+        this.points.copyPoint(this.order[second], c, dimension);
+
+        // 2-means
+        for (int step = 0; step < SPLIT_STEPS; step++) {
+            Arrays.fill(this.splitSums, 0);
+            this.splitWeights[0] = 0;
+            this.splitWeights[1] = 0;
+            boolean changed = false;
+            for (int i = from; i < to; i++) {
+                int point = this.order[i];
+                int offset = point * dimension;
+                double d0 = KmeansPlusPlusInitializer.squaredDistance(data, offset, c, 0,
+                        dimension);
+                double d1 = KmeansPlusPlusInitializer.squaredDistance(data, offset, c,
+                        dimension, dimension);
+                byte side = d1 < d0 ? (byte) 1 : (byte) 0;
+                if (this.sides[point] != side) {
+                    this.sides[point] = side;
+                    changed = true;
+                }
+                double weight = this.points.weight(point);
+                this.splitWeights[side] += weight;
+                for (int d = 0; d < dimension; d++) {
+                    this.splitSums[side * dimension + d] += weight * data[offset + d];
+                }
+            }
+            if (!changed && step > 0) {
+                break;
+            }
+            for (int s = 0; s < 2; s++) {
+                if (this.splitWeights[s] == 0) {
+                    continue;
+                }
+                for (int d = 0; d < dimension; d++) {
+                    c[s * dimension + d] = this.splitSums[s * dimension + d]
+                            / this.splitWeights[s];
+                }
+            }
+        }
+
+        // final sides against the centers the children keep, which predict(...) compares
+        for (int i = from; i < to; i++) {
+            int point = this.order[i];
+            int offset = point * dimension;
+            double d0 = KmeansPlusPlusInitializer.squaredDistance(data, offset, c, 0, dimension);
+            double d1 = KmeansPlusPlusInitializer.squaredDistance(data, offset, c, dimension,
+                    dimension);
+            this.sides[point] = d1 < d0 ? (byte) 1 : (byte) 0;
+        }
+
+        // partition the range of the node by side
+        int i = from;
+        int j = to - 1;
+        while (i <= j) {
+            if (this.sides[this.order[i]] == 0) {
+                i++;
+            } else {
+                int temp = this.order[i];
+                this.order[i] = this.order[j];
+                this.order[j] = temp;
+                j--;
+            }
+        }
+        if (i == from || i == to) {
+            return false;
+        }
+        this.nodeLeft[node] = this.addNode(from, i, c, 0);
+        this.nodeRight[node] = this.addNode(i, to, c, dimension);
+        return true;
+    }
+}
@@ -0,0 +1,372 @@
+package kmeans;
+
+import java.util.stream.IntStream;
+
+/**
+ * An index over a fixed set of centers for finding the nearest center of many points, e.g. for
+ * labeling new points with a trained model. The centers are organized in a ball tree: every node
+ * holds a pivot (the mean of its centers) and a radius covering all its centers, so a whole node
+ * is skipped once the point is farther from its ball than from the best center found so far.
+ *
+ * In addition, every center knows half the distance to its nearest other center. A point within
+ * that distance of a center is nearer to it than to any other center, so the search stops as soon
+ * as such a center is found - usually in the first leaf visited.
+ *
+ * Queries are exact (ties go to the center of the lower index, like LloydEngine) and thread safe.
+ * A query keeps its state in a Search, which a caller labeling many points can reuse (see
+ * newSearch()), so that a query allocates nothing. Labeling many points at once splits them into
+ * chunks labeled in parallel, each chunk with its own Search.
+ */
+public class CenterIndex {
+
+    // maximum number of centers in a leaf
+    private static final int LEAF_SIZE = 16;
+
+    // number of points of a chunk labeled by one thread with one Search
+    private static final int CHUNK_SIZE = 1024;
+
+    private final int centerNum;
+
+    private final int dimension;
+
+    // row-major centers, reordered so that the centers of every node are contiguous
+    private final double[] sortedCenters;
+
+    // original index of every reordered center
+    private final int[] order;
+
+    // squared half distance from every reordered center to its nearest other center
+    private final double[] squaredHalfGaps;
+
+    // pivot (row-major, nodes * dimension), radius, range of centers and children of every node
+    private final double[] nodePivots;
+    private final double[] nodeRadius;
+    private final int[] nodeFrom;
+    private final int[] nodeTo;
+    private final int[] nodeLeft;
+    private final int[] nodeRight;
+
+    // number of nodes
+    private int nodeCount = 0;
+
+    /**
+     * Build an index over a copy of the centers.
+     *
+     * @param centers   row-major matrix of centers (centerNum * dimension)
+     * @param centerNum number of centers
+     * @param dimension dimension of centers
+     */
+    public CenterIndex(double[] centers, int centerNum, int dimension) {
+        if (centerNum <= 0 || dimension <= 0 || centers.length < centerNum * dimension) {
+            throw new IllegalArgumentException("Center index - invalid centers: " + centerNum
+                    + " centers of dimension " + dimension + " in " + centers.length
+                    + " values. ");
+        }
+        this.centerNum = centerNum;
+        this.dimension = dimension;
+        this.order = new int[centerNum];
+        for (int k = 0; k < centerNum; k++) {
+            this.order[k] = k;
+        }
+
+        // a binary tree with leaves of at least 1 center has less than 2 * centerNum nodes
+        int maxNodes = 2 * centerNum;
+        this.nodePivots = new double[maxNodes * dimension];
+        this.nodeRadius = new double[maxNodes];
+        this.nodeFrom = new int[maxNodes];
+        this.nodeTo = new int[maxNodes];
+        this.nodeLeft = new int[maxNodes];
+        this.nodeRight = new int[maxNodes];
+        this.build(centers, 0, centerNum);
+
+        this.sortedCenters = new double[centerNum * dimension];
+        for (int i = 0; i < centerNum; i++) {
+            System.arraycopy(centers, this.order[i] * dimension, this.sortedCenters,
+                    i * dimension, dimension);
+        }
+
+        this.squaredHalfGaps = new double[centerNum];
+        for (int i = 0; i < centerNum; i++) {
+            double minimum = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < centerNum; j++) {
+                if (j != i) {
+                    minimum = Math.min(minimum, KmeansPlusPlusInitializer.squaredDistance(
+                            this.sortedCenters, i * dimension, this.sortedCenters,
+                            j * dimension, dimension));
+                }
+            }
+            this.squaredHalfGaps[i] = minimum / 4;
+        }
+    }
+
+    /**
+     * Find the nearest center of a point, with a new Search. A caller labeling many points should
+     * rather reuse a Search (see newSearch()).
+     *
+     * @param data   array containing the point
+     * @param offset offset of the point in data
+     * @return index of the nearest center
+     */
+    public int nearest(double[] data, int offset) {
+        return this.newSearch().nearest(data, offset);
+    }
+
+    /**
+     * Find the nearest centers of points, in parallel.
+     *
+     * @param data   row-major coordinates of points
+     * @param labels receives the index of the nearest center of every point
+     */
+    public void nearest(double[] data, int[] labels) {
+        int dimension = this.dimension;
+        this.label(labels, (search, i) -> search.nearest(data, i * dimension));
+    }
+
+    /**
+     * Find the nearest centers of points, in parallel.
+     *
+     * @param points points[i] is the i-th point
+     * @param labels receives the index of the nearest center of every point
+     */
+    public void nearest(double[][] points, int[] labels) {
+        this.label(labels, (search, i) -> search.nearest(points[i], 0));
+    }
+
+    /**
+     * Create a search state for queries of one thread.
+     *
+     * @return new search state
+     */
+    public Search newSearch() {
+        return new Search();
+    }
+
+    /**
+     * Get the number of centers.
+     *
+     * @return number of centers
+     */
+    public int centerNum() {
+        return this.centerNum;
+    }
+
+    /**
+     * Get the dimension of centers.
+     *
+     * @return dimension of centers
+     */
+    public int dimension() {
+        return this.dimension;
+    }
+
+    /**
+     * Label points chunk by chunk in parallel, every chunk with one Search.
+     *
+     * @param labels receives the index of the nearest center of every point
+     * @param query  finds the nearest center of a point with a Search
+     */
+    private void label(int[] labels, Query query) {
+        int chunkCount = (labels.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream.range(0, chunkCount).parallel().forEach(chunk -> {
+            Search search = this.newSearch();
+            int to = Math.min(labels.length, (chunk + 1) * CHUNK_SIZE);
+            for (int i = chunk * CHUNK_SIZE; i < to; i++) {
+                labels[i] = query.nearest(search, i);
+            }
+        });
+    }
+
+    /**
+     * Calculate the distance from a point to the pivot of a node.
+     *
+     * @param node   index of node
+     * @param data   array containing the point
+     * @param offset offset of the point in data
+     * @return euclidean distance
+     */
+    private double pivotDistance(int node, double[] data, int offset) {
+        return Math.sqrt(KmeansPlusPlusInitializer.squaredDistance(data, offset,
+                this.nodePivots, node * this.dimension, this.dimension));
+    }
+
+    /**
+     * Build the node of a range of order[], splitting it between the 2 centers farthest apart
+     * (approximately).
+     *
+     * @param centers original row-major centers
+     * @param from    first position in order[]
+     * @param to      position after the last one in order[]
+     * @return index of the node
+     */
+    private int build(double[] centers, int from, int to) {
+        int node = this.nodeCount++;
+        int dimension = this.dimension;
+        int pivotOffset = node * dimension;
+        this.nodeFrom[node] = from;
+        this.nodeTo[node] = to;
+        this.nodeLeft[node] = -1;
+        this.nodeRight[node] = -1;
+
+        for (int i = from; i < to; i++) {
+            for (int d = 0; d < dimension; d++) {
+                this.nodePivots[pivotOffset + d] += centers[this.order[i] * dimension + d];
+            }
+        }
+        for (int d = 0; d < dimension; d++) {
+            this.nodePivots[pivotOffset + d] /= to - from;
+        }
+
+        // radius, and the center farthest from the pivot
+        double radius = 0;
+        int farthest = from;
+        for (int i = from; i < to; i++) {
+            double distance = KmeansPlusPlusInitializer.squaredDistance(centers,
+                    this.order[i] * dimension, this.nodePivots, pivotOffset, dimension);
+            if (distance > radius) {
+                radius = distance;
+                farthest = i;
+            }
+        }
+        // rounded up a little, so that the ball surely covers its centers
+        this.nodeRadius[node] = Math.sqrt(radius) * (1 + 1e-12);
+        if (to - from <= LEAF_SIZE || radius == 0) {
+            return node;
+        }
+
+        // the center farthest from that one, and split by which of the 2 is nearer
+        int a = this.order[farthest];
+        int b = a;
+        double maxDistance = -1;
+        for (int i = from; i < to; i++) {
+            double distance = KmeansPlusPlusInitializer.squaredDistance(centers,
+                    this.order[i] * dimension, centers, a * dimension, dimension);
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                b = this.order[i];
+            }
+        }
+        int i = from;
+        int j = to - 1;
+        while (i <= j) {
+            int center = this.order[i];
+            double toA = KmeansPlusPlusInitializer.squaredDistance(centers, center * dimension,
+                    centers, a * dimension, dimension);
+            double toB = KmeansPlusPlusInitializer.squaredDistance(centers, center * dimension,
+                    centers, b * dimension, dimension);
+            if (toA <= toB) {
+                i++;
+            } else {
+                this.order[i] = this.order[j];
+                this.order[j] = center;
+                j--;
+            }
+        }
+        if (i == from || i == to) {
+            return node;
+        }
+        this.nodeLeft[node] = this.build(centers, from, i);
+        this.nodeRight[node] = this.build(centers, i, to);
+        return node;
+    }
+
+    /**
+     * Query of the nearest center of a point, given by its index.
+     */
+    private interface Query {
+
+        /**
+         * Find the nearest center of a point.
+         *
+         * @param search search state to use
+         * @param i      index of point
+         * @return index of the nearest center
+         */
+        int nearest(Search search, int i);
+    }
+
+    /**
+     * State of a query: the best center found so far. A Search must not be shared between threads,
+     * but can be reused for any number of queries.
+     */
+    public class Search {
+
+        // squared distance to the best center so far, and its position in sortedCenters
+        private double bestDistance = Double.POSITIVE_INFINITY;
+        private int bestPosition = -1;
+
+        // whether the best center is surely the nearest one
+        private boolean settled = false;
+
+        private Search() {
+        }
+
+        /**
+         * Find the nearest center of a point.
+         *
+         * @param data   array containing the point
+         * @param offset offset of the point in data
+         * @return index of the nearest center
+         */
+        public int nearest(double[] data, int offset) {
+            this.bestDistance = Double.POSITIVE_INFINITY;
+            this.bestPosition = -1;
+            this.settled = false;
+            this.search(0, data, offset);
+            return order[this.bestPosition];
+        }
+
+        /**
+         * Search a node for a center nearer than the best one so far, nearer child first.
+         *
+         * @param node   index of node
+         * @param data   array containing the point
+         * @param offset offset of the point in data
+         */
+        private void search(int node, double[] data, int offset) {
+            if (nodeLeft[node] < 0) {
+                for (int i = nodeFrom[node]; i < nodeTo[node]; i++) {
+                    double distance = KmeansPlusPlusInitializer.squaredDistance(data, offset,
+                            sortedCenters, i * dimension, dimension);
+                    if (this.bestPosition < 0 || distance < this.bestDistance
+                            || (distance == this.bestDistance
+                            && order[i] < order[this.bestPosition])) {
+                        this.bestDistance = distance;
+                        this.bestPosition = i;
+                    }
+                }
+                // strictly within half the gap to any other center: no other center can be as
+                // near
+                if (this.bestDistance < squaredHalfGaps[this.bestPosition]) {
+                    this.settled = true;
+                }
+                return;
+            }
+
+            int left = nodeLeft[node];
+            int right = nodeRight[node];
+            double toLeft = pivotDistance(left, data, offset);
+            double toRight = pivotDistance(right, data, offset);
+            int first = toRight < toLeft ? right : left;
+            int second = first == left ? right : left;
+            double firstBound = Math.min(toLeft, toRight) - nodeRadius[first];
+            double secondBound = Math.max(toLeft, toRight) - nodeRadius[second];
+            if (!this.prunable(firstBound)) {
+                this.search(first, data, offset);
+            }
+            if (!this.settled && !this.prunable(secondBound)) {
+                this.search(second, data, offset);
+            }
+        }
+
+        /**
+         * Check whether a node can be skipped. Nodes at the same distance as the best center are
+         * not skipped, because they may hold a tie of lower index.
+         *
+         * @param bound lower bound of the distance from the point to the centers of the node
+         * @return whether the node can be skipped
+         */
+        private boolean prunable(double bound) {
+            return bound > 0 && bound * bound > this.bestDistance;
+        }
+    }
+}
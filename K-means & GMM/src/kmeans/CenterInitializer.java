@@ -0,0 +1,21 @@
+package kmeans;
+
+import java.util.Random;
+
+import dataset.PointMatrix;
+
+/**
+ * A way of choosing the initial centers of K-means.
+ */
+public interface CenterInitializer {
+
+    /**
+     * Choose initial centers from data points.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     * @param rand      random number generator, the only source of randomness
+     * @return row-major matrix of centers (centerNum * dimension)
+     */
+    double[] initCenters(PointMatrix points, int centerNum, Random rand);
+}
@@ -0,0 +1,289 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import dataset.PointMatrix;
+
+/**
+ * Base of K-means engines whose classification of a point only depends on the point itself and
+ * the centers. Data points are split into chunks. Every chunk classifies its points and sums them
+ * up into its own partial sums, and then the partial sums are merged pairwise along a fixed
+ * binary tree of chunks.
+ *
+ * The chunks and the merging tree only depend on the number of points, not on the number of
+ * threads. So running on a ForkJoinPool gives exactly the same floating point results as
+ * running sequentially.
+ */
+public abstract class ChunkedEngine implements KmeansEngine, AutoCloseable {
+
+    // a chunk holds at least this number of points (except the last one)
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    // points are split into no more than this number of chunks
+    private static final int MAX_CHUNKS = 256;
+
+    protected final PointMatrix points;
+
+    // which represents the value of "K" in "K-means"
+    protected final int centerNum;
+
+    // number of points per chunk and number of chunks
+    private final int chunkSize;
+    private final int chunkCount;
+
+    // partial sums of weighted coordinates (centerNum * dimension), weights and inertia of every
+    // chunk (weights are counts of points if points are not weighted)
+    private final double[][] partialSums;
+    private final double[][] partialCounts;
+    private final double[] partialInertia;
+
+    // pool for running chunks in parallel; null when running sequentially
+    private ForkJoinPool pool = null;
+
+    /**
+     * Construct a chunked engine on a point matrix.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     */
+    protected ChunkedEngine(PointMatrix points, int centerNum) {
+        this.points = points;
+        this.centerNum = centerNum;
+
+        int pointsCount = points.pointsCount();
+        int chunkSize = (pointsCount + MAX_CHUNKS - 1) / MAX_CHUNKS;
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+        this.chunkCount = Math.max(1, (pointsCount + this.chunkSize - 1) / this.chunkSize);
+
+        this.partialSums = new double[this.chunkCount][centerNum * points.dimension()];
+        this.partialCounts = new double[this.chunkCount][centerNum];
+        this.partialInertia = new double[this.chunkCount];
+    }
+
+    /**
+     * Set the number of threads used for taking a step. With 1 (the default) the step runs in the
+     * calling thread. The result is the same whatever the parallelism is.
+     *
+     * @param parallelism number of threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("K-means engine - invalid parallelism: "
+                    + parallelism + ". ");
+        }
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+        this.pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Get the number of threads used for taking a step.
+     *
+     * @return parallelism
+     */
+    public int parallelism() {
+        return this.pool == null ? 1 : this.pool.getParallelism();
+    }
+
+    /**
+     * Release the threads of the engine. The engine can still take steps, in the calling thread,
+     * until setParallelism(...) is called again.
+     */
+    @Override
+    public void close() {
+        if (this.pool != null) {
+            this.pool.shutdown();
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Get the number of chunks the points are split into.
+     *
+     * @return number of chunks
+     */
+    protected int chunkCount() {
+        return this.chunkCount;
+    }
+
+    /**
+     * Get the index of the chunk starting at a point, so that subclasses can keep per-chunk
+     * buffers which are never shared between threads.
+     *
+     * @param from index of the first point in the chunk
+     * @return index of the chunk
+     */
+    protected int chunkIndex(int from) {
+        return from / this.chunkSize;
+    }
+
+    @Override
+    public double step(double[] centers, int[] labels) {
+        this.classifyAll(centers, labels);
+
+        // recenter with the sums of all chunks, which have been merged into chunk 0
+        double[] sums = this.partialSums[0];
+        double[] counts = this.partialCounts[0];
+        int dimension = this.points.dimension();
+        for (int k = 0; k < this.centerNum; k++) {
+            double count = counts[k];
+            if (count == 0) {
+                continue;
+            }
+            for (int d = 0; d < dimension; d++) {
+                centers[k * dimension + d] = sums[k * dimension + d] / count;
+            }
+        }
+        return this.partialInertia[0];
+    }
+
+    /**
+     * Classify all points like step(...), but instead of moving the centers, hand out the
+     * per-cluster sums and counts - e.g. to be merged with those of other shards of the data.
+     *
+     * @param centers row-major matrix of centers, read only
+     * @param labels  labels of points, updated in place
+     * @param sums    receives per-cluster sums of weighted coordinates (centerNum * dimension)
+     * @param counts  receives per-cluster weights (counts) of points
+     * @return within-cluster sum of squares
+     */
+    public double accumulate(double[] centers, int[] labels, double[] sums, double[] counts) {
+        this.classifyAll(centers, labels);
+        System.arraycopy(this.partialSums[0], 0, sums, 0, this.partialSums[0].length);
+        System.arraycopy(this.partialCounts[0], 0, counts, 0, this.partialCounts[0].length);
+        return this.partialInertia[0];
+    }
+
+    /**
+     * Prepare for classifying all points with a new set of centers. Called once per step before
+     * any chunk is classified.
+     *
+     * @param centers row-major matrix of centers
+     */
+    protected void prepare(double[] centers) {
+    }
+
+    /**
+     * Classify all chunks and merge their partial sums into chunk 0.
+     *
+     * @param centers row-major matrix of centers
+     * @param labels  labels of points
+     */
+    private void classifyAll(double[] centers, int[] labels) {
+        this.prepare(centers);
+        if (this.pool == null) {
+            this.reduce(0, this.chunkCount, centers, labels);
+        } else {
+            this.pool.invoke(new ReduceTask(0, this.chunkCount, centers, labels));
+        }
+    }
+
+    /**
+     * Classify the points of a chunk and add every point to the running sums of its cluster. A
+     * weighted point adds weight * coordinates to the sums, weight to the count and weight *
+     * squared distance to the inertia.
+     *
+     * @param from    index of the first point in the chunk
+     * @param to      index after the last point in the chunk
+     * @param centers row-major matrix of centers, read only
+     * @param labels  labels of points, to be updated for points in the chunk
+     * @param sums    per-cluster sums of coordinates of the chunk, initially zero
+     * @param counts  per-cluster weights (counts) of points of the chunk, initially zero
+     * @return within-cluster sum of squares of the points in the chunk
+     */
+    protected abstract double classifyChunk(int from, int to, double[] centers, int[] labels,
+                                            double[] sums, double[] counts);
+
+    /**
+     * Classify chunks [fromChunk, toChunk) sequentially and merge their partial sums into chunk
+     * fromChunk.
+     *
+     * @param fromChunk index of the first chunk
+     * @param toChunk   index after the last chunk
+     * @param centers   row-major matrix of centers
+     * @param labels    labels of points
+     */
+    private void reduce(int fromChunk, int toChunk, double[] centers, int[] labels) {
+        if (toChunk - fromChunk == 1) {
+            this.classifyChunk(fromChunk, centers, labels);
+            return;
+        }
+        int midChunk = (fromChunk + toChunk) >>> 1;
+        this.reduce(fromChunk, midChunk, centers, labels);
+        this.reduce(midChunk, toChunk, centers, labels);
+        this.merge(fromChunk, midChunk);
+    }
+
+    /**
+     * Reset the partial sums of a chunk and classify its points.
+     *
+     * @param chunk   index of chunk
+     * @param centers row-major matrix of centers
+     * @param labels  labels of points
+     */
+    private void classifyChunk(int chunk, double[] centers, int[] labels) {
+        double[] sums = this.partialSums[chunk];
+        double[] counts = this.partialCounts[chunk];
+        Arrays.fill(sums, 0);
+        Arrays.fill(counts, 0);
+        int from = chunk * this.chunkSize;
+        int to = Math.min(from + this.chunkSize, this.points.pointsCount());
+        this.partialInertia[chunk] = this.classifyChunk(from, to, centers, labels, sums, counts);
+    }
+
+    /**
+     * Merge the partial sums of a chunk into another chunk.
+     *
+     * @param target index of chunk to merge into
+     * @param source index of chunk to merge from
+     */
+    private void merge(int target, int source) {
+        double[] targetSums = this.partialSums[target];
+        double[] sourceSums = this.partialSums[source];
+        for (int i = 0; i < targetSums.length; i++) {
+            targetSums[i] += sourceSums[i];
+        }
+        double[] targetCounts = this.partialCounts[target];
+        double[] sourceCounts = this.partialCounts[source];
+        for (int k = 0; k < targetCounts.length; k++) {
+            targetCounts[k] += sourceCounts[k];
+        }
+        this.partialInertia[target] += this.partialInertia[source];
+    }
+
+    /**
+     * Fork/join version of reduce(...) - the same tree of chunks, with both halves of a range run
+     * in parallel.
+     */
+    private class ReduceTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int fromChunk;
+        private final int toChunk;
+        private final double[] centers;
+        private final int[] labels;
+
+        ReduceTask(int fromChunk, int toChunk, double[] centers, int[] labels) {
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+            this.centers = centers;
+            this.labels = labels;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.toChunk - this.fromChunk == 1) {
+                classifyChunk(this.fromChunk, this.centers, this.labels);
+                return;
+            }
+            int midChunk = (this.fromChunk + this.toChunk) >>> 1;
+            invokeAll(new ReduceTask(this.fromChunk, midChunk, this.centers, this.labels),
+                    new ReduceTask(midChunk, this.toChunk, this.centers, this.labels));
+            merge(this.fromChunk, midChunk);
+        }
+    }
+}
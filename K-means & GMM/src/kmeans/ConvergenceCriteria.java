@@ -0,0 +1,114 @@
+package kmeans;
+
+/**
+ * When K-means is considered converged. There are 3 criteria, checked after every step - the run
+ * stops as soon as any enabled one is met:
+ *
+ * - center shift: no center moved farther than a distance in the step;
+ * - inertia change: inertia decreased by less than a fraction of the inertia of the step before;
+ * - relabeled points: less than a fraction of points (or none at all, with threshold 0) changed
+ * their cluster in the step.
+ *
+ * A negative threshold disables its criterion. The last 2 criteria compare 2 steps, so they are
+ * not checked on the first step of a run.
+ */
+public class ConvergenceCriteria {
+
+    /**
+     * Criterion that ended a run.
+     */
+    public enum Reason {
+        CENTER_SHIFT,
+        INERTIA_CHANGE,
+        RELABELED_POINTS,
+        // no criterion was met within the maximum number of steps
+        MAX_STEPS
+    }
+
+    // largest distance a center may move in a converged step; negative to disable
+    private final double maxCenterShift;
+
+    // largest relative decrease of inertia of a converged step; negative to disable
+    private final double relativeInertiaChange;
+
+    // largest fraction of points changing cluster in a converged step; negative to disable
+    private final double relabeledFraction;
+
+    /**
+     * Construct convergence criteria.
+     *
+     * @param maxCenterShift        largest distance a center may move; negative to disable
+     * @param relativeInertiaChange largest relative decrease of inertia; negative to disable
+     * @param relabeledFraction     largest fraction of relabeled points; negative to disable
+     */
+    public ConvergenceCriteria(double maxCenterShift, double relativeInertiaChange,
+                               double relabeledFraction) {
+        if (Double.isNaN(maxCenterShift) || Double.isNaN(relativeInertiaChange)
+                || Double.isNaN(relabeledFraction)) {
+            throw new IllegalArgumentException("Convergence criteria - NaN threshold. ");
+        }
+        this.maxCenterShift = maxCenterShift;
+        this.relativeInertiaChange = relativeInertiaChange;
+        this.relabeledFraction = relabeledFraction;
+    }
+
+    /**
+     * Get the default criteria: converged once no point changes its cluster (after which steps
+     * change nothing), or once inertia decreases by less than 1e-6 of itself.
+     *
+     * @return default criteria
+     */
+    public static ConvergenceCriteria defaults() {
+        return new ConvergenceCriteria(-1, 1e-6, 0);
+    }
+
+    /**
+     * Check the criteria against a step.
+     *
+     * @param centerShift  largest distance a center moved in the step
+     * @param lastInertia  inertia of the step before, or NaN on the first step
+     * @param inertia      inertia of the step
+     * @param relabeled    fraction of points that changed cluster, or NaN on the first step
+     * @return the criterion met, or null if the step is not converged
+     */
+    Reason check(double centerShift, double lastInertia, double inertia, double relabeled) {
+        if (this.maxCenterShift >= 0 && centerShift <= this.maxCenterShift) {
+            return Reason.CENTER_SHIFT;
+        }
+        if (this.relabeledFraction >= 0 && relabeled <= this.relabeledFraction) {
+            return Reason.RELABELED_POINTS;
+        }
+        if (this.relativeInertiaChange >= 0
+                && lastInertia - inertia <= this.relativeInertiaChange * lastInertia) {
+            return Reason.INERTIA_CHANGE;
+        }
+        return null;
+    }
+
+    /**
+     * Get the largest distance a center may move in a converged step.
+     *
+     * @return threshold of center shift, negative if disabled
+     */
+    public double maxCenterShift() {
+        return this.maxCenterShift;
+    }
+
+    /**
+     * Get the largest relative decrease of inertia of a converged step.
+     *
+     * @return threshold of inertia change, negative if disabled
+     */
+    public double relativeInertiaChange() {
+        return this.relativeInertiaChange;
+    }
+
+    /**
+     * Get the largest fraction of points changing cluster in a converged step.
+     *
+     * @return threshold of relabeled points, negative if disabled
+     */
+    public double relabeledFraction() {
+        return this.relabeledFraction;
+    }
+}
@@ -0,0 +1,169 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import dataset.PointMatrix;
+
+/**
+ * Build a coreset of data points by sensitivity sampling - a small weighted sample whose
+ * clustering cost approximates that of the full data for any set of centerNum centers. K-means
+ * (any engine) and GMM can run on the coreset directly, since it is just a weighted point matrix.
+ *
+ * A rough solution is found first with K-means++ seeding. The sensitivity of a point - how much
+ * it may matter to the cost of some solution - is then bounded with its distance to the rough
+ * centers and the size and cost of its rough cluster:
+ * s(x) = alpha * d(x) / c + 2 * alpha * cost(B_x) / (W(B_x) * c) + 4 * W / W(B_x),
+ * where d(x) is the squared distance to the nearest rough center, B_x is the rough cluster of x,
+ * c is the average cost per unit weight, W is the total weight and alpha = 16 * (log K + 2).
+ * Points are sampled with possibility proportional to weight * sensitivity and reweighted so that
+ * the weighted cost of the sample is an unbiased estimate of the full cost. The error of the
+ * cost shrinks as the coreset grows.
+ */
+public class CoresetBuilder {
+
+    // number of centers the coreset is built for - "K"
+    private final int centerNum;
+
+    // number of points sampled
+    private final int size;
+
+    private final long seed;
+
+    /**
+     * Construct a coreset builder.
+     *
+     * @param centerNum number of centers the coreset is built for - "K"
+     * @param size      number of points sampled (the coreset may be smaller, since points
+     *                  sampled more than once are merged)
+     * @param seed      seed for seeding and sampling
+     */
+    public CoresetBuilder(int centerNum, int size, long seed) {
+        if (centerNum <= 0 || size <= 0) {
+            throw new IllegalArgumentException("Coreset - invalid arguments: centerNum "
+                    + centerNum + ", size " + size + ". ");
+        }
+        this.centerNum = centerNum;
+        this.size = size;
+        this.seed = seed;
+    }
+
+    /**
+     * Build a coreset of data points.
+     *
+     * @param points data points, possibly weighted
+     * @return weighted coreset
+     */
+    public PointMatrix build(PointMatrix points) {
+        int pointsCount = points.pointsCount();
+        int dimension = points.dimension();
+        double[] data = points.data();
+        if (pointsCount <= this.size || pointsCount <= this.centerNum) {
+            return points;
+        }
+        Random rand = new Random(this.seed);
+
+        // a rough solution
+        double[] centers = new KmeansPlusPlusInitializer().initCenters(points, this.centerNum,
+                rand);
+        double[] transposed = new double[centers.length];
+        double[] distances = new double[this.centerNum];
+        DistanceKernel.transpose(centers, this.centerNum, dimension, transposed);
+
+        // distance of every point to the rough solution, and weight and cost of rough clusters
+        double[] pointCosts = new double[pointsCount];
+        int[] labels = new int[pointsCount];
+        double[] clusterWeights = new double[this.centerNum];
+        double[] clusterCosts = new double[this.centerNum];
+        double totalWeight = 0;
+        double totalCost = 0;
+        for (int i = 0; i < pointsCount; i++) {
+            int label = DistanceKernel.nearest(data, i * dimension, transposed, this.centerNum,
+                    dimension, distances);
+            double weight = points.weight(i);
+            labels[i] = label;
+            pointCosts[i] = distances[label];
+            clusterWeights[label] += weight;
+            clusterCosts[label] += weight * distances[label];
+            totalWeight += weight;
+            totalCost += weight * distances[label];
+        }
+        if (totalWeight <= 0) {
+            return points;
+        }
+        double averageCost = totalCost / totalWeight;
+        double alpha = 16 * (Math.log(this.centerNum) + 2);
+
+        // sampling mass weight * sensitivity of every point, and cumulative masses
+        double[] masses = new double[pointsCount];
+        double[] cumulative = new double[pointsCount];
+        double mass = 0;
+        for (int i = 0; i < pointsCount; i++) {
+            int label = labels[i];
+            double weight = points.weight(i);
+            if (weight == 0) {
+                // a zero-weight point is never sampled - and its cluster may weigh 0 as a whole
+                cumulative[i] = mass;
+                continue;
+            }
+            double sensitivity = 4 * totalWeight / clusterWeights[label];
+            if (averageCost > 0) {
+                sensitivity += alpha * pointCosts[i] / averageCost
+                        + 2 * alpha * clusterCosts[label] / (clusterWeights[label] * averageCost);
+            }
+            masses[i] = weight * sensitivity;
+            mass += masses[i];
+            cumulative[i] = mass;
+        }
+
+        // sample with replacement, then merge points sampled more than once
+        int[] sampled = new int[this.size];
+        for (int s = 0; s < this.size; s++) {
+            sampled[s] = upperBound(cumulative, rand.nextDouble() * mass);
+        }
+        Arrays.sort(sampled);
+
+        int distinct = 0;
+        for (int s = 0; s < this.size; s++) {
+            if (s == 0 || sampled[s] != sampled[s - 1]) {
+                distinct++;
+            }
+        }
+        PointMatrix coreset = new PointMatrix(distinct, dimension);
+        double[] weights = new double[distinct];
+        int c = -1;
+        for (int s = 0; s < this.size; s++) {
+            int index = sampled[s];
+            if (s == 0 || index != sampled[s - 1]) {
+                c++;
+                points.copyPoint(index, coreset.data(), c * dimension);
+            }
+            // weight / (size * possibility), possibility = mass of the point / total mass
+            weights[c] += points.weight(index) * mass / (this.size * masses[index]);
+        }
+        coreset.setWeights(weights);
+        return coreset;
+    }
+
+    /**
+     * Find the first index whose cumulative mass is greater than a target, so that a point is
+     * found with possibility proportional to its own mass.
+     *
+     * @param cumulative non-decreasing cumulative masses
+     * @param target     target in [0, total mass)
+     * @return index of the sampled point
+     */
+    private static int upperBound(double[] cumulative, double target) {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] > target) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+}
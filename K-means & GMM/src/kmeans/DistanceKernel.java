@@ -0,0 +1,77 @@
+package kmeans;
+
+/**
+ * Squared-distance kernel for searching the nearest center, written so that the JIT compiler can
+ * turn it into SIMD instructions.
+ *
+ * Centers are transposed into a dimension-major matrix (dimension * centerNum), so the squared
+ * distances from a point to all centers are accumulated dimension by dimension in plain loops
+ * over continuous arrays with no calls and no branches - the shape of loop that HotSpot's
+ * superword optimization vectorizes. No square root is taken, because the nearest center is the
+ * same for squared distances.
+ *
+ * For every center, squared differences are added up in the order of dimensions, the same as
+ * LloydEngine.euclideanDistance(...), so the squared distances are exactly the same as those.
+ */
+public final class DistanceKernel {
+
+    private DistanceKernel() {
+    }
+
+    /**
+     * Transpose a row-major matrix of centers (centerNum * dimension) into a dimension-major one
+     * (dimension * centerNum).
+     *
+     * @param centers    row-major matrix of centers
+     * @param centerNum  number of centers
+     * @param dimension  dimension of centers
+     * @param transposed destination, of length centerNum * dimension
+     */
+    public static void transpose(double[] centers, int centerNum, int dimension,
+                                 double[] transposed) {
+        for (int k = 0; k < centerNum; k++) {
+            for (int d = 0; d < dimension; d++) {
+                transposed[d * centerNum + k] = centers[k * dimension + d];
+            }
+        }
+    }
+
+    /**
+     * Calculate the squared distances from a point to all centers, and find the nearest center.
+     * A tie goes to the center with the smaller index.
+     *
+     * @param data       array containing the point
+     * @param offset     offset of the point in data
+     * @param transposed dimension-major matrix of centers
+     * @param centerNum  number of centers
+     * @param dimension  dimension of points
+     * @param distances  buffer of length centerNum; receives the squared distance to every center
+     * @return index of the nearest center
+     */
+    public static int nearest(double[] data, int offset, double[] transposed, int centerNum,
+                              int dimension, double[] distances) {
+        double x = data[offset];
+        for (int k = 0; k < centerNum; k++) {
+            double diff = x - transposed[k];
+            distances[k] = diff * diff;
+        }
+        for (int d = 1; d < dimension; d++) {
+            x = data[offset + d];
+            int base = d * centerNum;
+            for (int k = 0; k < centerNum; k++) {
+                double diff = x - transposed[base + k];
+                distances[k] += diff * diff;
+            }
+        }
+
+        int centerSelected = 0;
+        double minDistance = distances[0];
+        for (int k = 1; k < centerNum; k++) {
+            if (distances[k] < minDistance) {
+                minDistance = distances[k];
+                centerSelected = k;
+            }
+        }
+        return centerSelected;
+    }
+}
@@ -0,0 +1,233 @@
+package kmeans;
+
+import dataset.PointMatrix;
+
+/**
+ * K-means step accelerated with the triangle inequality (Elkan's algorithm). It gives the same
+ * assignments as LloydEngine, but skips most distance calculations once points stop moving
+ * between clusters.
+ *
+ * For every point it keeps an upper bound of the distance to its own center, and a lower bound of
+ * the distance to every other center. When centers move, the bounds are loosened by how far the
+ * centers moved, which is still correct because of the triangle inequality. A center c can not
+ * be nearer to point x than its current center a when
+ * - upper(x) &lt;= lower(x, c), or
+ * - upper(x) &lt;= d(a, c) / 2,
+ * and then d(x, c) need not be calculated at all.
+ *
+ * The lower bounds take pointsCount * centerNum doubles of memory. The bounds assume that labels
+ * are only changed by this engine, so the engine should be used from the first step on, and
+ * reset() must be called whenever labels are changed by anything else.
+ */
+public class ElkanEngine extends ChunkedEngine {
+
+    // upper bound of the distance between every point and its center
+    private final double[] upperBounds;
+
+    // lower bounds of the distances between every point and every center (pointsCount * centerNum)
+    private final double[] lowerBounds;
+
+    // distances between every 2 centers (centerNum * centerNum)
+    private final double[] centerDistances;
+
+    // for every center, half of the distance to its nearest other center
+    private final double[] halfMinDistances;
+
+    // how far every center has moved since the bounds were last updated
+    private final double[] centerShifts;
+
+    // centers the bounds were last updated against
+    private final double[] lastCenters;
+
+    // whether the bounds have been initialized by a first full step
+    private boolean initialized = false;
+
+    // whether the current step calculates all distances (the first step)
+    private boolean fullStep = true;
+
+    /**
+     * Construct an Elkan engine on a point matrix.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     */
+    public ElkanEngine(PointMatrix points, int centerNum) {
+        super(points, centerNum);
+        int pointsCount = points.pointsCount();
+        this.upperBounds = new double[pointsCount];
+        this.lowerBounds = new double[pointsCount * centerNum];
+        this.centerDistances = new double[centerNum * centerNum];
+        this.halfMinDistances = new double[centerNum];
+        this.centerShifts = new double[centerNum];
+        this.lastCenters = new double[centerNum * points.dimension()];
+    }
+
+    /**
+     * Forget the bounds, so that the next step calculates all distances again. Needed after labels
+     * have been changed by anything but this engine, as the bounds no longer match them.
+     */
+    public void reset() {
+        this.initialized = false;
+    }
+
+    @Override
+    protected void prepare(double[] centers) {
+        int dimension = this.points.dimension();
+
+        // distances between centers, and how far centers moved since the last step
+        for (int i = 0; i < this.centerNum; i++) {
+            double minDistance = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < this.centerNum; j++) {
+                if (i == j) {
+                    continue;
+                }
+                double distance = LloydEngine.euclideanDistance(
+                        centers, i * dimension, centers, j * dimension, dimension);
+                this.centerDistances[i * this.centerNum + j] = distance;
+                minDistance = Math.min(minDistance, distance);
+            }
+            this.halfMinDistances[i] = minDistance / 2;
+            this.centerShifts[i] = this.initialized ? LloydEngine.euclideanDistance(
+                    centers, i * dimension, this.lastCenters, i * dimension, dimension) : 0;
+        }
+        System.arraycopy(centers, 0, this.lastCenters, 0, this.lastCenters.length);
+
+        this.fullStep = !this.initialized;
+        this.initialized = true;
+    }
+
+    @Override
+    protected double classifyChunk(int from, int to, double[] centers, int[] labels,
+                                   double[] sums, double[] counts) {
+        if (this.fullStep) {
+            return this.classifyChunkFully(from, to, centers, labels, sums, counts);
+        }
+
+        double[] data = this.points.data();
+        double[] weights = this.points.weights();
+        int dimension = this.points.dimension();
+
+        double inertia = 0;
+        for (int i = from; i < to; i++) {
+            int offset = i * dimension;
+            int boundOffset = i * this.centerNum;
+            int centerSelected = labels[i];
+
+            // loosen the bounds by how far the centers moved
+            double upperBound = this.upperBounds[i] + this.centerShifts[centerSelected];
+            for (int l = 0; l < this.centerNum; l++) {
+                double lowerBound = this.lowerBounds[boundOffset + l] - this.centerShifts[l];
+                this.lowerBounds[boundOffset + l] = lowerBound > 0 ? lowerBound : 0;
+            }
+            // whether upperBound is the exact distance to the selected center
+            boolean exact = false;
+
+            if (upperBound >= this.halfMinDistances[centerSelected]) {
+                for (int l = 0; l < this.centerNum; l++) {
+                    if (l == centerSelected
+                            || this.cannotBeNearer(upperBound, boundOffset, centerSelected, l)) {
+                        continue;
+                    }
+                    if (!exact) {
+                        // tighten the upper bound and check again
+                        upperBound = LloydEngine.euclideanDistance(
+                                data, offset, centers, centerSelected * dimension, dimension);
+                        this.lowerBounds[boundOffset + centerSelected] = upperBound;
+                        exact = true;
+                        if (this.cannotBeNearer(upperBound, boundOffset, centerSelected, l)) {
+                            continue;
+                        }
+                    }
+                    double distance = LloydEngine.euclideanDistance(
+                            data, offset, centers, l * dimension, dimension);
+                    this.lowerBounds[boundOffset + l] = distance;
+                    // same tie breaking as LloydEngine - the center with the smaller index wins
+                    if (distance < upperBound || (distance == upperBound && l < centerSelected)) {
+                        centerSelected = l;
+                        upperBound = distance;
+                    }
+                }
+            }
+
+            if (!exact) {
+                // the exact distance is needed by the inertia
+                upperBound = LloydEngine.euclideanDistance(
+                        data, offset, centers, centerSelected * dimension, dimension);
+                this.lowerBounds[boundOffset + centerSelected] = upperBound;
+            }
+            this.upperBounds[i] = upperBound;
+            labels[i] = centerSelected;
+            double weight = weights == null ? 1 : weights[i];
+            inertia += weight * upperBound * upperBound;
+
+            // add the point to the running sums of its cluster
+            int sumOffset = centerSelected * dimension;
+            for (int d = 0; d < dimension; d++) {
+                sums[sumOffset + d] += weight * data[offset + d];
+            }
+            counts[centerSelected] += weight;
+        }
+        return inertia;
+    }
+
+    /**
+     * Whether center l can not be nearer to a point than its selected center, according to the
+     * bounds. A center with a smaller index at exactly the same distance still needs to be
+     * checked, because ties are broken by index.
+     *
+     * @param upperBound     upper bound of the distance to the selected center
+     * @param boundOffset    offset of the lower bounds of the point
+     * @param centerSelected index of the selected center
+     * @param l              index of the center to check
+     * @return true if center l can be skipped
+     */
+    private boolean cannotBeNearer(double upperBound, int boundOffset, int centerSelected, int l) {
+        double lowerBound = this.lowerBounds[boundOffset + l];
+        double halfDistance = this.centerDistances[centerSelected * this.centerNum + l] / 2;
+        if (l < centerSelected) {
+            return upperBound < lowerBound || upperBound < halfDistance;
+        }
+        return upperBound <= lowerBound || upperBound <= halfDistance;
+    }
+
+    /**
+     * Classify the points of a chunk by calculating distances to all centers, and initialize the
+     * bounds with these exact distances.
+     *
+     * @see ChunkedEngine#classifyChunk(int, int, double[], int[], double[], double[])
+     */
+    private double classifyChunkFully(int from, int to, double[] centers, int[] labels,
+                                      double[] sums, double[] counts) {
+        double[] data = this.points.data();
+        double[] weights = this.points.weights();
+        int dimension = this.points.dimension();
+
+        double inertia = 0;
+        for (int i = from; i < to; i++) {
+            int offset = i * dimension;
+            int boundOffset = i * this.centerNum;
+            int centerSelected = 0;
+            double minDistance = Double.POSITIVE_INFINITY;
+            for (int l = 0; l < this.centerNum; l++) {
+                double distance = LloydEngine.euclideanDistance(
+                        data, offset, centers, l * dimension, dimension);
+                this.lowerBounds[boundOffset + l] = distance;
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    centerSelected = l;
+                }
+            }
+            this.upperBounds[i] = minDistance;
+            labels[i] = centerSelected;
+            double weight = weights == null ? 1 : weights[i];
+            inertia += weight * minDistance * minDistance;
+
+            int sumOffset = centerSelected * dimension;
+            for (int d = 0; d < dimension; d++) {
+                sums[sumOffset + d] += weight * data[offset + d];
+            }
+            counts[centerSelected] += weight;
+        }
+        return inertia;
+    }
+}
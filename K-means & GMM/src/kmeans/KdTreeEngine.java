@@ -0,0 +1,369 @@
+package kmeans;
+
+import java.util.Arrays;
+
+import dataset.PointMatrix;
+
+/**
+ * K-means step with a KD-tree over the data points (the filtering algorithm). Works best for low
+ * dimension data (2 - 3 dimensions), where the cells of the tree are small compared with the
+ * distances between centers.
+ *
+ * Every node of the tree caches the bounding box, the sum of coordinates, the weight (number) of
+ * points and the scatter of its points - the sum of squared distances to their mean, which stays
+ * precise however far the points are from the origin. Going down the tree, every node keeps a list
+ * of candidate centers. A candidate z is filtered out when every point of the cell is nearer to the
+ * candidate z* nearest to the middle of the cell than to z. When only one candidate is left, the
+ * whole subtree is assigned to it at once with the cached sums, without calculating any distance.
+ *
+ * It gives the same assignments as LloydEngine (ties are broken by center index), but sums are
+ * added up node by node, so centers may differ from LloydEngine in the last bits.
+ */
+public class KdTreeEngine implements KmeansEngine {
+
+    // a node with no more than this number of points is a leaf
+    private static final int LEAF_SIZE = 32;
+
+    private final PointMatrix points;
+
+    // which represents the value of "K" in "K-means"
+    private final int centerNum;
+
+    private final int dimension;
+
+    // indices of points, ordered so that every node covers a continuous range
+    private final int[] order;
+
+    // number of nodes; node 0 is the root
+    private int nodeCount = 0;
+
+    // range [start, end) of every node in order, and its children (-1 for leaves)
+    private final int[] nodeStarts;
+    private final int[] nodeEnds;
+    private final int[] nodeLefts;
+    private final int[] nodeRights;
+
+    // bounding box and sum of weighted coordinates of every node (nodeCount * dimension)
+    private final double[] nodeMins;
+    private final double[] nodeMaxs;
+    private final double[] nodeSums;
+
+    // sum of weights and sum of weighted squared distances to their mean of points of every node
+    private final double[] nodeWeights;
+    private final double[] nodeScatters;
+
+    // depth of the tree
+    private int depth = 0;
+
+    // candidate lists, one list of at most centerNum centers per level of the tree
+    private final int[] candidates;
+
+    // per-cluster sums of weighted coordinates (centerNum * dimension) and weights of points
+    private final double[] sums;
+    private final double[] counts;
+
+    // within-cluster sum of squares of the current step
+    private double inertia = 0;
+
+    /**
+     * Construct a KD-tree engine and build the tree over the data points.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     */
+    public KdTreeEngine(PointMatrix points, int centerNum) {
+        this.points = points;
+        this.centerNum = centerNum;
+        this.dimension = points.dimension();
+
+        int pointsCount = points.pointsCount();
+        this.order = new int[pointsCount];
+        for (int i = 0; i < pointsCount; i++) {
+            this.order[i] = i;
+        }
+
+        // leaves hold at least LEAF_SIZE / 2 points, so this is enough for all nodes
+        int maxNodes = 4 * (pointsCount / LEAF_SIZE) + 3;
+        this.nodeStarts = new int[maxNodes];
+        this.nodeEnds = new int[maxNodes];
+        this.nodeLefts = new int[maxNodes];
+        this.nodeRights = new int[maxNodes];
+        this.nodeMins = new double[maxNodes * this.dimension];
+        this.nodeMaxs = new double[maxNodes * this.dimension];
+        this.nodeSums = new double[maxNodes * this.dimension];
+        this.nodeWeights = new double[maxNodes];
+        this.nodeScatters = new double[maxNodes];
+        this.build(0, pointsCount, 0);
+
+        this.candidates = new int[(this.depth + 2) * centerNum];
+        this.sums = new double[centerNum * this.dimension];
+        this.counts = new double[centerNum];
+    }
+
+    @Override
+    public double step(double[] centers, int[] labels) {
+        Arrays.fill(this.sums, 0);
+        Arrays.fill(this.counts, 0);
+        this.inertia = 0;
+        for (int k = 0; k < this.centerNum; k++) {
+            this.candidates[k] = k;
+        }
+
+        if (this.points.pointsCount() > 0) {
+            this.filter(0, 0, this.centerNum, centers, labels);
+        }
+
+        // recenter
+        for (int k = 0; k < this.centerNum; k++) {
+            double count = this.counts[k];
+            if (count == 0) {
+                continue;
+            }
+            for (int d = 0; d < this.dimension; d++) {
+                centers[k * this.dimension + d] = this.sums[k * this.dimension + d] / count;
+            }
+        }
+        return this.inertia;
+    }
+
+    /**
+     * Filter the candidates of a node, and assign its points.
+     *
+     * @param node           index of node
+     * @param level          level of the candidate list of the node
+     * @param candidateCount number of candidates in the list
+     * @param centers        row-major matrix of centers
+     * @param labels         labels of points
+     */
+    private void filter(int node, int level, int candidateCount, double[] centers,
+                        int[] labels) {
+        int listOffset = level * this.centerNum;
+        int boxOffset = node * this.dimension;
+
+        // the candidate nearest to the middle of the cell
+        int zStar = this.candidates[listOffset];
+        double minDistance = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < candidateCount; c++) {
+            int z = this.candidates[listOffset + c];
+            double distance = 0;
+            for (int d = 0; d < this.dimension; d++) {
+                double middle = (this.nodeMins[boxOffset + d] + this.nodeMaxs[boxOffset + d]) / 2;
+                double diff = centers[z * this.dimension + d] - middle;
+                distance += diff * diff;
+            }
+            if (distance < minDistance) {
+                minDistance = distance;
+                zStar = z;
+            }
+        }
+
+        // keep candidates that may be nearer than zStar to some point of the cell
+        int nextOffset = listOffset + this.centerNum;
+        int nextCount = 0;
+        for (int c = 0; c < candidateCount; c++) {
+            int z = this.candidates[listOffset + c];
+            if (z == zStar || !this.dominated(z, zStar, boxOffset, centers)) {
+                this.candidates[nextOffset + nextCount++] = z;
+            }
+        }
+
+        if (nextCount == 1) {
+            this.assignNode(node, zStar, centers, labels);
+        } else if (this.nodeLefts[node] < 0) {
+            this.assignLeaf(node, nextOffset, nextCount, centers, labels);
+        } else {
+            this.filter(this.nodeLefts[node], level + 1, nextCount, centers, labels);
+            this.filter(this.nodeRights[node], level + 1, nextCount, centers, labels);
+        }
+    }
+
+    /**
+     * Whether every point of a cell is nearer to zStar than to z. Only the corner of the cell
+     * farthest in the direction of (z - zStar) needs to be checked. A tie only goes to zStar when
+     * zStar has the smaller index.
+     *
+     * @param z         candidate to check
+     * @param zStar     candidate nearest to the middle of the cell
+     * @param boxOffset offset of the bounding box of the cell
+     * @param centers   row-major matrix of centers
+     * @return true if z can be filtered out
+     */
+    private boolean dominated(int z, int zStar, int boxOffset, double[] centers) {
+        double distanceZ = 0;
+        double distanceZStar = 0;
+        for (int d = 0; d < this.dimension; d++) {
+            double coordZ = centers[z * this.dimension + d];
+            double coordZStar = centers[zStar * this.dimension + d];
+            double corner = coordZ > coordZStar
+                    ? this.nodeMaxs[boxOffset + d] : this.nodeMins[boxOffset + d];
+            distanceZ += (coordZ - corner) * (coordZ - corner);
+            distanceZStar += (coordZStar - corner) * (coordZStar - corner);
+        }
+        return distanceZ > distanceZStar || (distanceZ == distanceZStar && zStar < z);
+    }
+
+    /**
+     * Assign all points of a node to one center with the cached sums of the node.
+     */
+    private void assignNode(int node, int center, double[] centers, int[] labels) {
+        double count = this.nodeWeights[node];
+        for (int i = this.nodeStarts[node]; i < this.nodeEnds[node]; i++) {
+            labels[this.order[i]] = center;
+        }
+
+        // sum of weighted squared distances = scatter around the mean m + sum(w) * |m - c|^2,
+        // which adds 2 non-negative terms rather than cancelling large ones
+        double shift = 0;
+        for (int d = 0; d < this.dimension; d++) {
+            double nodeSum = this.nodeSums[node * this.dimension + d];
+            this.sums[center * this.dimension + d] += nodeSum;
+            if (count > 0) {
+                double diff = nodeSum / count - centers[center * this.dimension + d];
+                shift += diff * diff;
+            }
+        }
+        this.counts[center] += count;
+        this.inertia += this.nodeScatters[node] + count * shift;
+    }
+
+    /**
+     * Assign points of a leaf one by one to their nearest candidates.
+     */
+    private void assignLeaf(int node, int listOffset, int candidateCount, double[] centers,
+                            int[] labels) {
+        double[] data = this.points.data();
+        double[] weights = this.points.weights();
+        for (int i = this.nodeStarts[node]; i < this.nodeEnds[node]; i++) {
+            int index = this.order[i];
+            int offset = index * this.dimension;
+            int centerSelected = -1;
+            double minDistance = Double.POSITIVE_INFINITY;
+            // candidates are in ascending order, so the smaller index wins a tie
+            for (int c = 0; c < candidateCount; c++) {
+                int z = this.candidates[listOffset + c];
+                double distance = KmeansPlusPlusInitializer.squaredDistance(
+                        data, offset, centers, z * this.dimension, this.dimension);
+                if (distance < minDistance) {
+                    minDistance = distance;
+                    centerSelected = z;
+                }
+            }
+            labels[index] = centerSelected;
+            double weight = weights == null ? 1 : weights[index];
+            this.inertia += weight * minDistance;
+            for (int d = 0; d < this.dimension; d++) {
+                this.sums[centerSelected * this.dimension + d] += weight * data[offset + d];
+            }
+            this.counts[centerSelected] += weight;
+        }
+    }
+
+    /**
+     * Build the subtree over order[start, end).
+     *
+     * @param start start of range
+     * @param end   end of range
+     * @param level depth of the node
+     * @return index of the node
+     */
+    private int build(int start, int end, int level) {
+        double[] data = this.points.data();
+        int node = this.nodeCount++;
+        int boxOffset = node * this.dimension;
+        this.depth = Math.max(this.depth, level);
+        this.nodeStarts[node] = start;
+        this.nodeEnds[node] = end;
+
+        // bounding box and sums
+        Arrays.fill(this.nodeMins, boxOffset, boxOffset + this.dimension,
+                Double.POSITIVE_INFINITY);
+        Arrays.fill(this.nodeMaxs, boxOffset, boxOffset + this.dimension,
+                Double.NEGATIVE_INFINITY);
+        double weightSum = 0;
+        for (int i = start; i < end; i++) {
+            int offset = this.order[i] * this.dimension;
+            double weight = this.points.weight(this.order[i]);
+            weightSum += weight;
+            for (int d = 0; d < this.dimension; d++) {
+                double coord = data[offset + d];
+                this.nodeMins[boxOffset + d] = Math.min(this.nodeMins[boxOffset + d], coord);
+                this.nodeMaxs[boxOffset + d] = Math.max(this.nodeMaxs[boxOffset + d], coord);
+                this.nodeSums[boxOffset + d] += weight * coord;
+            }
+        }
+        this.nodeWeights[node] = weightSum;
+
+        // scatter around the weighted mean, in a second pass
+        double scatter = 0;
+        if (weightSum > 0) {
+            for (int i = start; i < end; i++) {
+                int offset = this.order[i] * this.dimension;
+                double weight = this.points.weight(this.order[i]);
+                for (int d = 0; d < this.dimension; d++) {
+                    double diff = data[offset + d] - this.nodeSums[boxOffset + d] / weightSum;
+                    scatter += weight * diff * diff;
+                }
+            }
+        }
+        this.nodeScatters[node] = scatter;
+
+        // split on the widest dimension at the median
+        int splitDim = 0;
+        double widest = -1;
+        for (int d = 0; d < this.dimension; d++) {
+            double width = this.nodeMaxs[boxOffset + d] - this.nodeMins[boxOffset + d];
+            if (width > widest) {
+                widest = width;
+                splitDim = d;
+            }
+        }
+        if (end - start <= LEAF_SIZE || widest <= 0) {
+            this.nodeLefts[node] = -1;
+            this.nodeRights[node] = -1;
+            return node;
+        }
+        int mid = (start + end) >>> 1;
+        this.select(start, end, mid, splitDim);
+        this.nodeLefts[node] = this.build(start, mid, level + 1);
+        this.nodeRights[node] = this.build(mid, end, level + 1);
+        return node;
+    }
+
+    /**
+     * Partially sort order[start, end) by a coordinate, so that the k-th position holds the
+     * point it would hold if fully sorted, with no greater point before and no smaller point
+     * after it (quickselect).
+     */
+    private void select(int start, int end, int k, int dim) {
+        double[] data = this.points.data();
+        int left = start;
+        int right = end - 1;
+        while (left < right) {
+            double pivot = data[this.order[(left + right) >>> 1] * this.dimension + dim];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (data[this.order[i] * this.dimension + dim] < pivot) {
+                    i++;
+                }
+                while (data[this.order[j] * this.dimension + dim] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int temp = this.order[i];
+                    this.order[i] = this.order[j];
+                    this.order[j] = temp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
@@ -2,11 +2,12 @@ package kmeans;
 
 import org.jfree.data.xy.XYSeries;
 
+import java.util.Arrays;
 import java.util.Random;
-import java.util.Vector;
 
 import chart.GMMChart;
 import dataset.GMMDataset;
+import dataset.PointMatrix;
 import defaultargs.MyArg;
 
 public class Kmeans {
@@ -14,28 +15,72 @@ public class Kmeans {
     // which represents the value of "K" in "K-means"
     private int centerNum = MyArg.valueK.value();
 
-    private GMMDataset dataset = null;
-
-    // vector of center points - \miu
-    private Vector<Double> xCenters = new Vector<>();
-    private Vector<Double> yCenters = new Vector<>();
-
     /*
-     If applied m-dimension data points, the following variables should integrate into another
-     m-dimension vector. But for this program and the convenience of imaging results, we just
-     use 2 dimension to represent data points.
-     (I don't know how to draw high-dimension data points in a coordinate system ...)
-     And if applied m-dimension, loops in functions of this class may add another layer, and we
-     must use another dataset.
+     Data points are stored in a row-major matrix of primitive doubles, which works for any
+     dimension. GMMDataset is only used for imaging - when drawing, the first 2 dimensions of
+     data points are used as x-y coordinates.
      */
-    // Vector of xySeries vector of xyPoints (there are several clusters in the following
-    // 2 vectors). The first dimension is cluster type. The second is data point index.
-    private Vector<Vector<Double>> xPoints = new Vector<>();   // x coordinates of data points
-    private Vector<Vector<Double>> yPoints = new Vector<>();   // y coordinates of data points
+    private PointMatrix points = null;
+
+    // row-major matrix of center points (centerNum * dimension) - \miu
+    private double[] centers = null;
+
+    // index of the cluster that every data point is assigned to
+    private int[] labels = null;
+
+    // within-cluster sum of squares of the last step (or of the last assign())
+    private double inertia = Double.NaN;
+
+    // engine taking (classify & recenter) steps
+    private KmeansEngine engine = null;
+
+    // whether the engine was created by this K-means (rather than passed to setEngine(...)), and
+    // so is released by it
+    private boolean ownsEngine = false;
+
+    // number of threads taking steps with engines created by this K-means
+    private int parallelism = 1;
+
+    // index over the current centers for prediction; null until needed or once centers move
+    private CenterIndex centerIndex = null;
+
+    // way of choosing initial centers
+    private CenterInitializer initializer = new KmeansPlusPlusInitializer();
+
+    // random number generator for choosing initial centers
+    private Random rand = new Random();
 
     public Kmeans(GMMDataset dataset) {
-        this.dataset = dataset;
-        this.extract(this.dataset);
+        this.extract(dataset);
+        this.initCenter();
+    }
+
+    /**
+     * Construct K-means on a point matrix of any dimension.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     */
+    public Kmeans(PointMatrix points, int centerNum) {
+        this(points, centerNum, new Random().nextLong());
+    }
+
+    /**
+     * Construct K-means on a point matrix of any dimension, with a fixed random seed so that the
+     * result is reproducible.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     * @param seed      seed for choosing initial centers
+     */
+    public Kmeans(PointMatrix points, int centerNum, long seed) {
+        if (centerNum <= 0 || centerNum > points.pointsCount()) {
+            throw new IllegalArgumentException("K-means - invalid number of centers: "
+                    + centerNum + " (points count: " + points.pointsCount() + "). ");
+        }
+        this.centerNum = centerNum;
+        this.rand = new Random(seed);
+        this.setPoints(points);
         this.initCenter();
     }
 
@@ -73,11 +118,12 @@ public class Kmeans {
      * @return a dataset fitting for imaging
      */
     public GMMDataset getDatasetForImaging() {
-        GMMDataset dataset = this.dataset.clone();
+        GMMDataset dataset = this.points.toGMMDataset(this.labels, this.centerNum, "optimized");
+        int dimension = this.points.dimension();
         XYSeries centerSeries = new XYSeries("centers");
         for (int i = 0; i < this.centerNum; i++) {
-            double x = this.xCenters.get(i);
-            double y = this.yCenters.get(i);
+            double x = this.centers[i * dimension];
+            double y = dimension > 1 ? this.centers[i * dimension + 1] : 0;
             centerSeries.add(x, y);
         }
         dataset.addSeries(centerSeries);
@@ -85,169 +131,250 @@ public class Kmeans {
     }
 
     /**
-     * Classify and recenter the GMM dataset for a specific step.
+     * Classify and recenter the data points for a specific step.
      *
      * @param steps steps taken to (classify & recenter)
      */
     public void iterate(int steps) {
-        GMMDataset newDataset = new GMMDataset();
-        // add #(centerNum) empty series to the dataset for optimized data points
-        newDataset.addSeries(this.centerNum, "optimized");
-
         // iterate #(steps) steps - classify & recenter
         for (int i = 0; i < steps; i++) {
-            classify(newDataset);
-            recenter(newDataset);
+            this.inertia = this.engine.step(this.centers, this.labels);
         }
+        this.centerIndex = null;
     }
 
     /**
-     * Classify all data points in the original dataset and put the classified data points into a
-     * new dataset.
+     * Take steps until the convergence criteria are met or maxSteps steps have been taken, and
+     * report how the run went.
      *
-     * @param newDataset new dataset
+     * @param maxSteps maximum number of steps
+     * @param criteria when to consider K-means converged
+     * @return report of the run
      */
-    private void classify(GMMDataset newDataset) {
-        // get the data points of the j-th XY series
-        int seriesCount = this.dataset.seriesCount();
-        for (int j = 0; j < seriesCount; j++) {
-            XYSeries xySeries = this.dataset.getSeries(j);
-            // get the data point of the k-th XY series in j-th XY series
-            int itemsCount = xySeries.getItemCount();
-            for (int k = 0; k < itemsCount; k++) {
-                double x = xySeries.getX(k).doubleValue();
-                double y = xySeries.getY(k).doubleValue();
-                // search all centers to find the nearest
-                double xCenter = this.xCenters.get(0);
-                double yCenter = this.yCenters.get(0);
-                int centerSelected = 0;
-                double minDistance = this.euclideanDistance(x, y, xCenter, yCenter);
-                for (int l = 1; l < this.centerNum; l++) {
-                    xCenter = this.xCenters.get(l);
-                    yCenter = this.yCenters.get(l);
-                    double temp = this.euclideanDistance(x, y, xCenter, yCenter);
-                    if (temp < minDistance) {
-                        minDistance = temp;
-                        centerSelected = l;
-                    }
+    public RunReport fit(int maxSteps, ConvergenceCriteria criteria) {
+        if (maxSteps <= 0) {
+            throw new IllegalArgumentException("K-means - invalid maximum number of steps: "
+                    + maxSteps + ". ");
+        }
+        int dimension = this.points.dimension();
+        int pointsCount = this.labels.length;
+        double[] lastCenters = new double[this.centers.length];
+        int[] lastLabels = new int[pointsCount];
+        double[] inertias = new double[maxSteps];
+        double[] centerShifts = new double[maxSteps];
+        double[] relabeledFractions = new double[maxSteps];
+        long[] stepNanos = new long[maxSteps];
+
+        ConvergenceCriteria.Reason reason = ConvergenceCriteria.Reason.MAX_STEPS;
+        int step = 0;
+        while (step < maxSteps) {
+            System.arraycopy(this.centers, 0, lastCenters, 0, lastCenters.length);
+            System.arraycopy(this.labels, 0, lastLabels, 0, pointsCount);
+            long start = System.nanoTime();
+            this.inertia = this.engine.step(this.centers, this.labels);
+            stepNanos[step] = System.nanoTime() - start;
+
+            double maxShift = 0;
+            for (int k = 0; k < this.centerNum; k++) {
+                maxShift = Math.max(maxShift, KmeansPlusPlusInitializer.squaredDistance(
+                        this.centers, k * dimension, lastCenters, k * dimension, dimension));
+            }
+            int relabeled = 0;
+            for (int i = 0; i < pointsCount; i++) {
+                if (this.labels[i] != lastLabels[i]) {
+                    relabeled++;
                 }
-                newDataset.getSeries(centerSelected).add(x, y);
+            }
+            inertias[step] = this.inertia;
+            centerShifts[step] = Math.sqrt(maxShift);
+            // labels before the first step of a run may not be an assignment at all
+            relabeledFractions[step] = step == 0 ? Double.NaN
+                    : (double) relabeled / Math.max(1, pointsCount);
+            ConvergenceCriteria.Reason met = criteria.check(centerShifts[step],
+                    step == 0 ? Double.NaN : inertias[step - 1], this.inertia,
+                    relabeledFractions[step]);
+            step++;
+            if (met != null) {
+                reason = met;
+                break;
             }
         }
-        this.dataset = newDataset;
+        this.centerIndex = null;
+        return new RunReport(step, reason, Arrays.copyOf(inertias, step),
+                Arrays.copyOf(centerShifts, step),
+                Arrays.copyOf(relabeledFractions, step),
+                Arrays.copyOf(stepNanos, step));
     }
 
     /**
-     * Re-center the centers in the original dataset and store the new centers.
+     * Assign every data point to its nearest current center, without moving the centers. A step
+     * measures the inertia of the centers before it moves them; this measures the inertia of the
+     * centers the model holds now, and brings the labels in line with them. An ElkanEngine is
+     * reset, as its bounds no longer match the labels.
      *
-     * @param dataset new dataset
+     * @return within-cluster sum of squares of the current centers
      */
-    private void recenter(GMMDataset dataset) {
-        for (int i = 0; i < this.centerNum; i++) {
-            XYSeries xySeries = dataset.getSeries(i);
-            int itemsCount = xySeries.getItemCount();
-            double xSum = 0;
-            double ySum = 0;
-            for (int j = 0; j < itemsCount; j++) {
-                xSum += xySeries.getX(j).doubleValue();
-                ySum += xySeries.getY(j).doubleValue();
+    public double assign() {
+        CenterIndex index = this.centerIndex();
+        int dimension = this.points.dimension();
+        double[] data = this.points.data();
+        index.nearest(data, this.labels);
+        if (this.engine instanceof ElkanEngine) {
+            ((ElkanEngine) this.engine).reset();
+        }
+        double inertia = 0;
+        for (int i = 0; i < this.labels.length; i++) {
+            inertia += this.points.weight(i) * KmeansPlusPlusInitializer.squaredDistance(
+                    data, i * dimension, this.centers, this.labels[i] * dimension, dimension);
+        }
+        this.inertia = inertia;
+        return inertia;
+    }
+
+    /**
+     * Assign new points to their nearest centers, without changing the model. Points are labeled
+     * in parallel, with an index over the centers (see CenterIndex) that is built once per set of
+     * centers.
+     *
+     * @param newPoints newPoints[i] is the i-th point, of the same dimension as the data points
+     * @return index of the nearest center of every point
+     */
+    public int[] predict(double[][] newPoints) {
+        CenterIndex index = this.centerIndex();
+        for (int i = 0; i < newPoints.length; i++) {
+            if (newPoints[i].length != index.dimension()) {
+                throw new IllegalArgumentException("K-means - point " + i + " has dimension "
+                        + newPoints[i].length + " rather than " + index.dimension() + ". ");
             }
-            double xMean = xSum / itemsCount;
-            double yMean = ySum / itemsCount;
-            this.xCenters.set(i, xMean);
-            this.yCenters.set(i, yMean);
         }
+        int[] predicted = new int[newPoints.length];
+        index.nearest(newPoints, predicted);
+        return predicted;
+    }
+
+    /**
+     * Assign new points to their nearest centers, without changing the model.
+     *
+     * @param newPoints points of the same dimension as the data points
+     * @return index of the nearest center of every point
+     * @see #predict(double[][])
+     */
+    public int[] predict(PointMatrix newPoints) {
+        CenterIndex index = this.centerIndex();
+        int dimension = index.dimension();
+        if (newPoints.dimension() != dimension) {
+            throw new IllegalArgumentException("K-means - dimension of points ("
+                    + newPoints.dimension() + ") does not match " + dimension + ". ");
+        }
+        double[] data = newPoints.data();
+        int[] predicted = new int[newPoints.pointsCount()];
+        index.nearest(data, predicted);
+        return predicted;
     }
 
     /**
-     * Sum 2 vectors by every dimension.
+     * Replace the engine used for taking steps. The engine must work on the same data points and
+     * the same number of centers as this K-means.
      *
-     * @param vect1 vector 1
-     * @param vect2 vector 2
-     * @return sum-vector
+     * @param engine new engine
      */
-    private Vector<Double> sumVector(Vector<Double> vect1, Vector<Double> vect2) {
-        Vector<Double> vector = new Vector<>();
-        if (vect1.size() != vect2.size()) {
-            System.out.println("Error - summing vector failed. ");
-            System.exit(-1);
+    public void setEngine(KmeansEngine engine) {
+        this.releaseEngine();
+        this.engine = engine;
+        this.ownsEngine = false;
+    }
+
+    /**
+     * Set the number of threads taking steps. It applies to the default engine, and to an engine
+     * passed to setEngine(...) if that is a ChunkedEngine. The result is the same whatever the
+     * parallelism is.
+     *
+     * @param parallelism number of threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("K-means - invalid parallelism: " + parallelism
+                    + ". ");
         }
-        int vectLength = vect1.size();
-        for (int i = 0; i < vectLength; i++) {
-            double sumi = vect1.get(i) + vect2.get(i);
-            vector.add(sumi);
+        this.parallelism = parallelism;
+        if (this.engine instanceof ChunkedEngine) {
+            ((ChunkedEngine) this.engine).setParallelism(parallelism);
         }
-        return vector;
     }
 
     /**
-     * Calculate the euclidean distance of 2 points in 2-dimension space. (x-y coordinate system)
+     * Release the threads of the engine created by this K-means. Steps can still be taken, in the
+     * calling thread, until setParallelism(...) is called again.
+     */
+    public void close() {
+        this.releaseEngine();
+    }
+
+    /**
+     * Get the data points.
      *
-     * @param x1 x coordinate of point 1
-     * @param y1 y coordinate of point 1
-     * @param x2 x coordinate of point 2
-     * @param y2 y coordinate of point 2
+     * @return data points
      */
-    private double euclideanDistance(double x1, double y1, double x2, double y2) {
-        return sqrt(square(x1 - x2) + square(y1 - y2));
+    public PointMatrix getPoints() {
+        return this.points;
     }
 
     /**
-     * Calculate the absolute value of a double value.
+     * Get a copy of the current centers.
      *
-     * @param x input value
-     * @return absolute value of x
+     * @return row-major matrix of centers (centerNum * dimension)
      */
-    private static double abs(double x) {
-        return Math.abs(x);
+    public double[] getCenters() {
+        return this.centers.clone();
     }
 
     /**
-     * Calculate the square root of a double value.
+     * Get a copy of the current labels - index of the cluster of every data point.
      *
-     * @param x input value
-     * @return square root of x
+     * @return labels of data points
      */
-    private static double sqrt(double x) {
-        return Math.sqrt(x);
+    public int[] getLabels() {
+        return this.labels.clone();
     }
 
     /**
-     * Calculate the square of a double value.
+     * Get the within-cluster sum of squares (inertia) of the last step, or of the last assign()
+     * if that came later.
      *
-     * @param x input value
-     * @return sqrt of x
+     * @return inertia, or NaN if no step has been taken
      */
-    private static double square(double x) {
-        return x * x;
+    public double inertia() {
+        return this.inertia;
     }
 
     /**
-     * Initialize the center points of K-means.
+     * Get the number of centers.
+     *
+     * @return value of "K"
+     */
+    public int centerNum() {
+        return this.centerNum;
+    }
+
+    /**
+     * Initialize the center points of K-means with the current initializer (K-means++ by default).
      */
     public void initCenter() {
-        Random rand = new Random();
-        for (int i = 0; i < this.centerNum; i++) {
-            int border = MyArg.borderSize.value();
-            // limit the coordinate value of center within (-border, border)
-            double xCenter;
-            double yCenter;
-            int seriesCount;
-            int pointsCountSeries;
-
-            // select a random series
-            seriesCount = this.xPoints.size();
-            Vector<Double> xSeries = this.xPoints.get(rand.nextInt(seriesCount));
-            Vector<Double> ySeries = this.yPoints.get(rand.nextInt(seriesCount));
-
-            // select a random data point from the series selected previously
-            pointsCountSeries = xSeries.size();
-            xCenter = xSeries.get(rand.nextInt(pointsCountSeries));
-            yCenter = ySeries.get(rand.nextInt(pointsCountSeries));
-
-            this.xCenters.add(xCenter);
-            this.yCenters.add(yCenter);
-        }
+        this.centers = this.initializer.initCenters(this.points, this.centerNum, this.rand);
+        this.centerIndex = null;
+    }
+
+    /**
+     * Choose another way of initializing centers, and initialize the center points with it.
+     *
+     * @param initializer way of choosing initial centers
+     * @see RandomInitializer
+     * @see KmeansPlusPlusInitializer
+     * @see KmeansParallelInitializer
+     */
+    public void initCenter(CenterInitializer initializer) {
+        this.initializer = initializer;
+        this.initCenter();
     }
 
     /**
@@ -256,23 +383,171 @@ public class Kmeans {
      * @param dataset GMMDataset
      */
     public void extract(GMMDataset dataset) {
-        // get all XY series
-        int seriesCount = dataset.seriesCount();
-        for (int i = 0; i < seriesCount; i++) {
-            XYSeries xySeries = dataset.getSeries(i);
-
-            // get data points of every XY series
-            int itemsCount = xySeries.getItemCount();
-            Vector<Double> vecX = new Vector<>();
-            Vector<Double> vecY = new Vector<>();
-            for (int j = 0; j < itemsCount; j++) {
-                double x = xySeries.getX(j).doubleValue();
-                double y = xySeries.getY(j).doubleValue();
-                vecX.add(x);
-                vecY.add(y);
+        this.setPoints(PointMatrix.fromGMMDataset(dataset));
+    }
+
+    /**
+     * Get the index over the current centers, building it if the centers have moved.
+     *
+     * @return index over the current centers
+     */
+    private CenterIndex centerIndex() {
+        if (this.centerIndex == null) {
+            this.centerIndex = new CenterIndex(this.centers, this.centerNum,
+                    this.points.dimension());
+        }
+        return this.centerIndex;
+    }
+
+    /**
+     * Use a point matrix as data points, reset labels of all points and create the default engine.
+     *
+     * @param points data points
+     */
+    private void setPoints(PointMatrix points) {
+        this.releaseEngine();
+        this.points = points;
+        this.labels = new int[points.pointsCount()];
+        LloydEngine engine = new LloydEngine(points, this.centerNum);
+        engine.setParallelism(this.parallelism);
+        this.engine = engine;
+        this.ownsEngine = true;
+    }
+
+    /**
+     * Release the threads of the current engine, if it was created by this K-means.
+     */
+    private void releaseEngine() {
+        if (this.ownsEngine && this.engine instanceof ChunkedEngine) {
+            ((ChunkedEngine) this.engine).close();
+        }
+    }
+
+    /**
+     * Report of a run of fit(...): what every step did, and why the run stopped.
+     */
+    public static class RunReport {
+
+        // number of steps taken
+        private final int steps;
+
+        // criterion that ended the run
+        private final ConvergenceCriteria.Reason reason;
+
+        // inertia, largest center shift, fraction of relabeled points and time of every step
+        private final double[] inertias;
+        private final double[] centerShifts;
+        private final double[] relabeledFractions;
+        private final long[] stepNanos;
+
+        private RunReport(int steps, ConvergenceCriteria.Reason reason, double[] inertias,
+                          double[] centerShifts, double[] relabeledFractions, long[] stepNanos) {
+            this.steps = steps;
+            this.reason = reason;
+            this.inertias = inertias;
+            this.centerShifts = centerShifts;
+            this.relabeledFractions = relabeledFractions;
+            this.stepNanos = stepNanos;
+        }
+
+        /**
+         * Get the number of steps taken.
+         *
+         * @return steps taken
+         */
+        public int steps() {
+            return this.steps;
+        }
+
+        /**
+         * Check whether a convergence criterion was met.
+         *
+         * @return whether the run converged within the maximum number of steps
+         */
+        public boolean converged() {
+            return this.reason != ConvergenceCriteria.Reason.MAX_STEPS;
+        }
+
+        /**
+         * Get the criterion that ended the run.
+         *
+         * @return reason of stopping
+         */
+        public ConvergenceCriteria.Reason reason() {
+            return this.reason;
+        }
+
+        /**
+         * Get the inertia of the last step.
+         *
+         * @return final inertia
+         */
+        public double finalInertia() {
+            return this.inertias[this.steps - 1];
+        }
+
+        /**
+         * Get the total time of all steps.
+         *
+         * @return time in nanoseconds
+         */
+        public long totalNanos() {
+            long total = 0;
+            for (long nanos : this.stepNanos) {
+                total += nanos;
             }
-            this.xPoints.add(vecX);
-            this.yPoints.add(vecY);
+            return total;
+        }
+
+        /**
+         * Get the average time of a step.
+         *
+         * @return time per step in nanoseconds
+         */
+        public double nanosPerStep() {
+            return (double) this.totalNanos() / this.steps;
+        }
+
+        /**
+         * Get the inertia of every step.
+         *
+         * @return inertias, measured against the centers before each step
+         */
+        public double[] inertias() {
+            return this.inertias.clone();
+        }
+
+        /**
+         * Get the largest distance a center moved in every step.
+         *
+         * @return center shifts
+         */
+        public double[] centerShifts() {
+            return this.centerShifts.clone();
+        }
+
+        /**
+         * Get the fraction of points that changed cluster in every step.
+         *
+         * @return relabeled fractions, NaN for the first step
+         */
+        public double[] relabeledFractions() {
+            return this.relabeledFractions.clone();
+        }
+
+        /**
+         * Get the time of every step.
+         *
+         * @return times in nanoseconds
+         */
+        public long[] stepNanos() {
+            return this.stepNanos.clone();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d steps (%s), final inertia %.6f, %.3f ms per step",
+                    this.steps, this.reason, this.finalInertia(), this.nanosPerStep() / 1e6);
         }
     }
 }
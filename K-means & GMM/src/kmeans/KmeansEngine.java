@@ -0,0 +1,20 @@
+package kmeans;
+
+/**
+ * An engine that takes one (classify & recenter) step of K-means over a fixed set of data points.
+ *
+ * Engines keep all their working buffers between steps, so taking a step allocates nothing.
+ */
+public interface KmeansEngine {
+
+    /**
+     * Assign every data point to its nearest center, and then move every center to the mean of
+     * the data points assigned to it. A center with no data point stays where it is.
+     *
+     * @param centers row-major matrix of centers (centerNum * dimension), updated in place
+     * @param labels  index of the cluster of every data point, updated in place
+     * @return within-cluster sum of squares of the assignment, measured against the centers
+     * before they are moved
+     */
+    double step(double[] centers, int[] labels);
+}
@@ -0,0 +1,230 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import dataset.PointMatrix;
+
+/**
+ * Scalable K-means++ seeding (K-means||). Instead of choosing one center per pass over the data
+ * like K-means++, every round samples about oversampling * centerNum candidates at once, each
+ * point independently with possibility proportional to its squared distance to the nearest
+ * candidate. After a few rounds, every candidate is weighted by the number of points nearest to
+ * it, and the candidates are reduced to centerNum centers with weighted K-means++. Weighted points
+ * count as their weights both in sampling and in weighing candidates.
+ *
+ * Passes over the data run on a ForkJoinPool. Every chunk of points draws from its own random
+ * number generator, seeded from the round and the chunk index, so the result does not depend on
+ * the parallelism.
+ */
+public class KmeansParallelInitializer implements CenterInitializer {
+
+    // number of points per chunk
+    private static final int CHUNK_SIZE = 4096;
+
+    // expected number of candidates sampled per round, as a multiple of "K"
+    private final double oversampling;
+
+    // number of sampling rounds
+    private final int rounds;
+
+    // number of threads
+    private final int parallelism;
+
+    /**
+     * Construct with 2 * K candidates per round, 5 rounds and all available processors.
+     */
+    public KmeansParallelInitializer() {
+        this(2.0, 5, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Construct a K-means|| initializer.
+     *
+     * @param oversampling expected number of candidates sampled per round, as a multiple of "K"
+     * @param rounds       number of sampling rounds
+     * @param parallelism  number of threads
+     */
+    public KmeansParallelInitializer(double oversampling, int rounds, int parallelism) {
+        if (oversampling <= 0 || rounds <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("K-means|| - invalid arguments: oversampling "
+                    + oversampling + ", rounds " + rounds + ", parallelism " + parallelism + ". ");
+        }
+        this.oversampling = oversampling;
+        this.rounds = rounds;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public double[] initCenters(PointMatrix points, int centerNum, Random rand) {
+        int pointsCount = points.pointsCount();
+        int dimension = points.dimension();
+        double[] data = points.data();
+        long seed = rand.nextLong();
+
+        // the first candidate is a uniformly random point
+        double[] candidates = new double[Math.max(centerNum, 16) * dimension];
+        points.copyPoint(rand.nextInt(pointsCount), candidates, 0);
+        int candidateCount = 1;
+
+        // squared distance between every point and its nearest candidate, and the index of it
+        double[] minDistances = new double[pointsCount];
+        int[] nearest = new int[pointsCount];
+        Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+
+        int chunkCount = (pointsCount + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        // points sampled in every chunk in the current round
+        int[][] sampled = new int[chunkCount][];
+        double[] chunkCosts = new double[chunkCount];
+
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            int updatedFrom = 0;
+            for (int round = 0; round <= this.rounds; round++) {
+                // update distances with candidates added in the last round, and sum up the cost
+                this.updateDistances(pool, points, candidates, updatedFrom,
+                        candidateCount, minDistances, nearest, chunkCosts);
+                updatedFrom = candidateCount;
+                if (round == this.rounds) {
+                    break;
+                }
+                double cost = 0;
+                for (double chunkCost : chunkCosts) {
+                    cost += chunkCost;
+                }
+                if (cost <= 0) {
+                    // every point is a candidate already
+                    break;
+                }
+
+                // sample new candidates independently
+                double factor = this.oversampling * centerNum / cost;
+                long roundSeed = seed + 0x9E3779B97F4A7C15L * (round + 1);
+                forEachChunk(pool, chunkCount, chunk -> {
+                    Random chunkRand = new Random(roundSeed + chunk);
+                    int from = chunk * CHUNK_SIZE;
+                    int to = Math.min(from + CHUNK_SIZE, pointsCount);
+                    int[] indices = new int[8];
+                    int count = 0;
+                    for (int i = from; i < to; i++) {
+                        if (chunkRand.nextDouble() < factor * points.weight(i) * minDistances[i]) {
+                            if (count == indices.length) {
+                                indices = Arrays.copyOf(indices, count * 2);
+                            }
+                            indices[count++] = i;
+                        }
+                    }
+                    sampled[chunk] = Arrays.copyOf(indices, count);
+                });
+
+                // collect new candidates in the order of chunks
+                for (int[] indices : sampled) {
+                    for (int index : indices) {
+                        if ((candidateCount + 1) * dimension > candidates.length) {
+                            candidates = Arrays.copyOf(candidates, candidates.length * 2);
+                        }
+                        points.copyPoint(index, candidates, candidateCount * dimension);
+                        candidateCount++;
+                    }
+                }
+            }
+
+            // weight every candidate with the number of points nearest to it
+            double[] weights = new double[candidateCount];
+            for (int i = 0; i < pointsCount; i++) {
+                weights[nearest[i]] += points.weight(i);
+            }
+
+            if (candidateCount <= centerNum) {
+                // not enough candidates - fill up with random points
+                double[] centers = Arrays.copyOf(candidates, centerNum * dimension);
+                for (int k = candidateCount; k < centerNum; k++) {
+                    points.copyPoint(rand.nextInt(pointsCount), centers, k * dimension);
+                }
+                return centers;
+            }
+            double[] candidateData = Arrays.copyOf(candidates, candidateCount * dimension);
+            return KmeansPlusPlusInitializer.seed(candidateData, weights, dimension, centerNum,
+                    rand);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Update the squared distance of every point to its nearest candidate (and the index of the
+     * candidate) with candidates [from, to), and sum up the weighted distances of every chunk.
+     */
+    private void updateDistances(ForkJoinPool pool, PointMatrix points, double[] candidates,
+                                 int from, int to, double[] minDistances, int[] nearest,
+                                 double[] chunkCosts) {
+        double[] data = points.data();
+        int dimension = points.dimension();
+        int pointsCount = minDistances.length;
+        forEachChunk(pool, chunkCosts.length, chunk -> {
+            int start = chunk * CHUNK_SIZE;
+            int end = Math.min(start + CHUNK_SIZE, pointsCount);
+            double cost = 0;
+            for (int i = start; i < end; i++) {
+                double minDistance = minDistances[i];
+                for (int c = from; c < to; c++) {
+                    double distance = KmeansPlusPlusInitializer.squaredDistance(
+                            data, i * dimension, candidates, c * dimension, dimension);
+                    if (distance < minDistance) {
+                        minDistance = distance;
+                        nearest[i] = c;
+                    }
+                }
+                minDistances[i] = minDistance;
+                cost += points.weight(i) * minDistance;
+            }
+            chunkCosts[chunk] = cost;
+        });
+    }
+
+    /**
+     * Run an action for every chunk index in [0, chunkCount) on a pool, and wait for all of them.
+     *
+     * @param pool       fork/join pool
+     * @param chunkCount number of chunks
+     * @param action     action taking a chunk index
+     */
+    private static void forEachChunk(ForkJoinPool pool, int chunkCount,
+                                     IntConsumer action) {
+        pool.invoke(new ChunkAction(0, chunkCount, action));
+    }
+
+    /**
+     * Run an action for chunks [from, to) by splitting the range in halves.
+     */
+    private static class ChunkAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final IntConsumer action;
+
+        ChunkAction(int from, int to, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= 1) {
+                if (this.to > this.from) {
+                    this.action.accept(this.from);
+                }
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new ChunkAction(this.from, mid, this.action),
+                    new ChunkAction(mid, this.to, this.action));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import dataset.PointMatrix;
+
+/**
+ * K-means++ seeding. The first center is a uniformly random data point. Every next center is a
+ * data point chosen with possibility proportional to its squared distance to the nearest center
+ * chosen so far, so that centers are spread over the data. Weighted points are chosen with
+ * possibility also proportional to their weights.
+ */
+public class KmeansPlusPlusInitializer implements CenterInitializer {
+
+    @Override
+    public double[] initCenters(PointMatrix points, int centerNum, Random rand) {
+        double[] weights = points.weights();
+        if (weights == null) {
+            weights = new double[points.pointsCount()];
+            Arrays.fill(weights, 1);
+        }
+        return seed(points.data(), weights, points.dimension(), centerNum, rand);
+    }
+
+    /**
+     * Weighted K-means++ seeding - the possibility of choosing a point is also proportional to its
+     * weight.
+     *
+     * @param data      row-major coordinates of points
+     * @param weights   weight of every point
+     * @param dimension dimension of points
+     * @param centerNum number of centers
+     * @param rand      random number generator
+     * @return row-major matrix of centers (centerNum * dimension)
+     */
+    static double[] seed(double[] data, double[] weights, int dimension, int centerNum,
+                         Random rand) {
+        int pointsCount = weights.length;
+        double[] centers = new double[centerNum * dimension];
+
+        // squared distance between every point and its nearest chosen center
+        double[] minDistances = new double[pointsCount];
+        Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+
+        int chosen = sample(weights, null, rand);
+        for (int k = 0; k < centerNum; k++) {
+            System.arraycopy(data, chosen * dimension, centers, k * dimension, dimension);
+            if (k == centerNum - 1) {
+                break;
+            }
+            // update the distances with the new center
+            for (int i = 0; i < pointsCount; i++) {
+                double distance = squaredDistance(data, i * dimension, centers, k * dimension,
+                        dimension);
+                if (distance < minDistances[i]) {
+                    minDistances[i] = distance;
+                }
+            }
+            chosen = sample(weights, minDistances, rand);
+        }
+        return centers;
+    }
+
+    /**
+     * Sample an index with possibility proportional to weights[i] * distances[i]. If all these
+     * products are 0 (e.g. all points are duplicates of chosen centers), sample by weights only.
+     *
+     * @param weights   weight of every point
+     * @param distances squared distance of every point, or null for sampling by weights only
+     * @param rand      random number generator
+     * @return sampled index
+     */
+    private static int sample(double[] weights, double[] distances, Random rand) {
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += distances == null ? weights[i] : weights[i] * distances[i];
+        }
+        if (total <= 0) {
+            return distances == null ? rand.nextInt(weights.length) : sample(weights, null, rand);
+        }
+        double target = rand.nextDouble() * total;
+        double cumulative = 0;
+        int last = 0;
+        for (int i = 0; i < weights.length; i++) {
+            double mass = distances == null ? weights[i] : weights[i] * distances[i];
+            if (mass <= 0) {
+                continue;
+            }
+            cumulative += mass;
+            last = i;
+            if (cumulative > target) {
+                return i;
+            }
+        }
+        // rounding errors may leave target just above the cumulative sum
+        return last;
+    }
+
+    /**
+     * Calculate the squared euclidean distance of 2 points stored in row-major arrays.
+     *
+     * @param p1        array containing point 1
+     * @param offset1   offset of point 1 in p1
+     * @param p2        array containing point 2
+     * @param offset2   offset of point 2 in p2
+     * @param dimension dimension of points
+     * @return squared distance between the 2 points
+     */
+    static double squaredDistance(double[] p1, int offset1, double[] p2, int offset2,
+                                  int dimension) {
+        double sum = 0;
+        for (int d = 0; d < dimension; d++) {
+            double diff = p1[offset1 + d] - p2[offset2 + d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+}
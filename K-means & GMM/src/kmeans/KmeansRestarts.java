@@ -0,0 +1,211 @@
+package kmeans;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import dataset.PointMatrix;
+
+/**
+ * Run K-means several times from different initial centers and keep the best result - the one
+ * with the lowest within-cluster sum of squares. Every restart runs Kmeans.fit(...) until its
+ * convergence criteria are met, and is then scored by the inertia of its final centers (see
+ * Kmeans.assign()). Restarts run concurrently on the same data points, which are only read.
+ * Every restart has its own seed derived from the base seed, so the result is reproducible
+ * whatever the number of threads is.
+ */
+public class KmeansRestarts {
+
+    private final PointMatrix points;
+
+    // which represents the value of "K" in "K-means"
+    private final int centerNum;
+
+    // number of restarts
+    private final int restarts;
+
+    // every restart takes at most this number of steps
+    private final int maxSteps;
+
+    // base seed of restarts
+    private final long seed;
+
+    // number of restarts run at the same time
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    // when a restart is considered converged
+    private ConvergenceCriteria criteria = ConvergenceCriteria.defaults();
+
+    /**
+     * Construct a restart driver.
+     *
+     * @param points    data points, shared by all restarts
+     * @param centerNum number of centers - "K"
+     * @param restarts  number of restarts
+     * @param maxSteps  maximum number of steps of every restart
+     * @param seed      base seed of restarts
+     */
+    public KmeansRestarts(PointMatrix points, int centerNum, int restarts, int maxSteps,
+                          long seed) {
+        if (restarts <= 0 || maxSteps <= 0) {
+            throw new IllegalArgumentException("K-means restarts - invalid arguments: restarts "
+                    + restarts + ", maxSteps " + maxSteps + ". ");
+        }
+        this.points = points;
+        this.centerNum = centerNum;
+        this.restarts = restarts;
+        this.maxSteps = maxSteps;
+        this.seed = seed;
+    }
+
+    /**
+     * Set the number of restarts run at the same time.
+     *
+     * @param parallelism number of threads
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("K-means restarts - invalid parallelism: "
+                    + parallelism + ". ");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set when a restart is considered converged (ConvergenceCriteria.defaults() by default).
+     *
+     * @param criteria convergence criteria of every restart
+     */
+    public void setCriteria(ConvergenceCriteria criteria) {
+        this.criteria = criteria;
+    }
+
+    /**
+     * Get the seed of a restart.
+     *
+     * @param restart index of restart
+     * @return seed of the restart
+     */
+    public long seedOf(int restart) {
+        return this.seed + 0x9E3779B97F4A7C15L * restart;
+    }
+
+    /**
+     * Run all restarts and pick the best one.
+     *
+     * @return the best model and statistics of all restarts
+     * @throws InterruptedException if interrupted while waiting for restarts
+     */
+    public Result run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(this.parallelism, this.restarts));
+        try {
+            List<Future<Kmeans>> futures = new ArrayList<>();
+            long[] nanos = new long[this.restarts];
+            int[] steps = new int[this.restarts];
+            double[] inertias = new double[this.restarts];
+            for (int r = 0; r < this.restarts; r++) {
+                final int restart = r;
+                futures.add(executor.submit(() -> {
+                    long start = System.nanoTime();
+                    Kmeans kmeans = new Kmeans(this.points, this.centerNum, this.seedOf(restart));
+                    steps[restart] = kmeans.fit(this.maxSteps, this.criteria).steps();
+                    inertias[restart] = kmeans.assign();
+                    nanos[restart] = System.nanoTime() - start;
+                    return kmeans;
+                }));
+            }
+
+            Result result = new Result(this.restarts);
+            for (int r = 0; r < this.restarts; r++) {
+                Kmeans kmeans;
+                try {
+                    kmeans = futures.get(r).get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("K-means restart " + r + " failed. ",
+                            e.getCause());
+                }
+                result.inertias[r] = inertias[r];
+                result.nanos[r] = nanos[r];
+                result.steps[r] = steps[r];
+                // on a tie, the restart with the smaller index wins
+                if (result.best == null || inertias[r] < result.inertias[result.bestRestart]) {
+                    result.best = kmeans;
+                    result.bestRestart = r;
+                }
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The best model of all restarts, and statistics of every restart.
+     */
+    public static class Result {
+
+        // the model with the lowest inertia, and its index
+        private Kmeans best = null;
+        private int bestRestart = -1;
+
+        // inertia of final centers, time in nanoseconds and number of steps of every restart
+        private final double[] inertias;
+        private final long[] nanos;
+        private final int[] steps;
+
+        private Result(int restarts) {
+            this.inertias = new double[restarts];
+            this.nanos = new long[restarts];
+            this.steps = new int[restarts];
+        }
+
+        /**
+         * Get the model with the lowest within-cluster sum of squares.
+         *
+         * @return best model
+         */
+        public Kmeans best() {
+            return this.best;
+        }
+
+        /**
+         * Get the index of the restart of the best model.
+         *
+         * @return index of the best restart
+         */
+        public int bestRestart() {
+            return this.bestRestart;
+        }
+
+        /**
+         * Get the inertia of the final centers of every restart.
+         *
+         * @return inertia of every restart
+         */
+        public double[] inertias() {
+            return this.inertias.clone();
+        }
+
+        /**
+         * Get the wall-clock time of every restart, including initialization.
+         *
+         * @return time of every restart in nanoseconds
+         */
+        public long[] nanos() {
+            return this.nanos.clone();
+        }
+
+        /**
+         * Get the number of steps taken by every restart.
+         *
+         * @return steps of every restart
+         */
+        public int[] steps() {
+            return this.steps.clone();
+        }
+    }
+}
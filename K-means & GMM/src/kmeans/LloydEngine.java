@@ -0,0 +1,104 @@
+package kmeans;
+
+import dataset.PointMatrix;
+
+/**
+ * The standard K-means step (Lloyd's algorithm). Classifying a point and adding it to the running
+ * sums of its cluster are done in the same pass, so every step reads the data points only once.
+ * Chunks of points can be run in parallel - see ChunkedEngine.setParallelism(int).
+ *
+ * The nearest center is searched with DistanceKernel on squared distances.
+ */
+public class LloydEngine extends ChunkedEngine {
+
+    // dimension-major copy of the centers of the current step
+    private final double[] transposedCenters;
+
+    // squared distances from a point to all centers, one buffer per chunk
+    private final double[][] distances;
+
+    /**
+     * Construct a Lloyd engine on a point matrix.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     */
+    public LloydEngine(PointMatrix points, int centerNum) {
+        super(points, centerNum);
+        this.transposedCenters = new double[centerNum * points.dimension()];
+        this.distances = new double[this.chunkCount()][centerNum];
+    }
+
+    @Override
+    protected void prepare(double[] centers) {
+        DistanceKernel.transpose(centers, this.centerNum, this.points.dimension(),
+                this.transposedCenters);
+    }
+
+    @Override
+    protected double classifyChunk(int from, int to, double[] centers, int[] labels,
+                                   double[] sums, double[] counts) {
+        double[] data = this.points.data();
+        double[] weights = this.points.weights();
+        int dimension = this.points.dimension();
+        double[] distances = this.distances[this.chunkIndex(from)];
+
+        double inertia = 0;
+        for (int i = from; i < to; i++) {
+            int offset = i * dimension;
+            // search all centers to find the nearest
+            int centerSelected = DistanceKernel.nearest(data, offset, this.transposedCenters,
+                    this.centerNum, dimension, distances);
+            labels[i] = centerSelected;
+            double weight = weights == null ? 1 : weights[i];
+            inertia += weight * distances[centerSelected];
+
+            // add the point to the running sums of its cluster
+            int sumOffset = centerSelected * dimension;
+            for (int d = 0; d < dimension; d++) {
+                sums[sumOffset + d] += weight * data[offset + d];
+            }
+            counts[centerSelected] += weight;
+        }
+        return inertia;
+    }
+
+    /**
+     * Calculate the euclidean distance of 2 points stored in row-major arrays.
+     *
+     * @param p1        array containing point 1
+     * @param offset1   offset of point 1 in p1
+     * @param p2        array containing point 2
+     * @param offset2   offset of point 2 in p2
+     * @param dimension dimension of points
+     * @return euclidean distance between the 2 points
+     */
+    public static double euclideanDistance(double[] p1, int offset1, double[] p2, int offset2,
+                                           int dimension) {
+        double sum = 0;
+        for (int d = 0; d < dimension; d++) {
+            sum += square(p1[offset1 + d] - p2[offset2 + d]);
+        }
+        return sqrt(sum);
+    }
+
+    /**
+     * Calculate the square root of a double value.
+     *
+     * @param x input value
+     * @return square root of x
+     */
+    private static double sqrt(double x) {
+        return Math.sqrt(x);
+    }
+
+    /**
+     * Calculate the square of a double value.
+     *
+     * @param x input value
+     * @return square of x
+     */
+    private static double square(double x) {
+        return x * x;
+    }
+}
@@ -0,0 +1,434 @@
+package kmeans;
+
+import org.jfree.data.xy.XYSeries;
+
+import java.util.Random;
+
+import dataset.GMMDataset;
+import dataset.PointMatrix;
+
+/**
+ * Mini-batch K-means. Every step samples a small batch of data points, assigns them to their
+ * nearest centers and moves each center towards its points with a per-center learning rate of
+ * w / (total weight of the points the center has been given so far), w being the weight of the
+ * point (1 if points are not weighted). A step only touches batchSize points, so the cost of a
+ * step does not grow with the size of the data.
+ *
+ * A center that has not been given any weight yet (e.g. one initialized where no points are
+ * sampled) is moved to a point of the batch, chosen with possibility proportional to its weighted
+ * squared distance to its center. Every REASSIGNMENT_INTERVAL steps, so is a center that has been
+ * given much less weight than the others. Checking that only now and then leaves a center of a
+ * small but real cluster time to gather weight between checks.
+ *
+ * Iteration stops once no center moves farther than the tolerance in a step by learning from its
+ * points; a center moved by reassignment does not count. The tolerance is relative to the spread
+ * of the data - the root mean squared distance of points to their mean - so it works the same
+ * whatever the scale of the data is.
+ */
+public class MiniBatchKmeans {
+
+    // initial centers are chosen from a random sample of at most this number of points
+    private static final int MAX_INIT_SAMPLE = 10000;
+
+    // a center given less than this fraction of the largest weight given to a center is moved
+    private static final double REASSIGNMENT_RATIO = 0.01;
+
+    // centers are checked for reassignment once per this number of steps
+    private static final int REASSIGNMENT_INTERVAL = 10;
+
+    private final PointMatrix points;
+
+    // which represents the value of "K" in "K-means"
+    private final int centerNum;
+
+    // number of points sampled per step
+    private final int batchSize;
+
+    // iteration stops when no center moves farther than this (times spread) in a step
+    private double tolerance = 1e-4;
+
+    // root mean squared distance of (sampled) points to their mean
+    private final double spread;
+
+    // row-major matrix of center points (centerNum * dimension) - \miu
+    private final double[] centers;
+
+    // total weight of the points every center has been given so far
+    private final double[] centerCounts;
+
+    // indices, labels and weighted squared distances to their centers of points in the current
+    // batch
+    private final int[] batch;
+    private final int[] batchLabels;
+    private final double[] batchCosts;
+
+    // centers before the current step, for measuring how far centers move
+    private final double[] lastCenters;
+
+    // number of steps taken
+    private int stepsTaken = 0;
+
+    // largest distance a center moved by learning in the last step
+    private double lastShift = Double.POSITIVE_INFINITY;
+
+    private final Random rand;
+
+    /**
+     * Construct mini-batch K-means with K-means++ initialization on a sample of the points.
+     *
+     * @param points    data points
+     * @param centerNum number of centers - "K"
+     * @param batchSize number of points sampled per step
+     * @param seed      seed for sampling points
+     */
+    public MiniBatchKmeans(PointMatrix points, int centerNum, int batchSize, long seed) {
+        this(points, centerNum, batchSize, seed, new KmeansPlusPlusInitializer());
+    }
+
+    /**
+     * Construct mini-batch K-means.
+     *
+     * @param points      data points
+     * @param centerNum   number of centers - "K"
+     * @param batchSize   number of points sampled per step
+     * @param seed        seed for sampling points
+     * @param initializer way of choosing initial centers, applied to a sample of the points
+     */
+    public MiniBatchKmeans(PointMatrix points, int centerNum, int batchSize, long seed,
+                           CenterInitializer initializer) {
+        if (centerNum <= 0 || centerNum > points.pointsCount() || batchSize <= 0) {
+            throw new IllegalArgumentException("Mini-batch K-means - invalid arguments: "
+                    + "centerNum " + centerNum + ", batchSize " + batchSize + " (points count: "
+                    + points.pointsCount() + "). ");
+        }
+        this.points = points;
+        this.centerNum = centerNum;
+        this.batchSize = batchSize;
+        this.rand = new Random(seed);
+
+        int dimension = points.dimension();
+        this.centerCounts = new double[centerNum];
+        this.batch = new int[batchSize];
+        this.batchLabels = new int[batchSize];
+        this.batchCosts = new double[batchSize];
+        this.lastCenters = new double[centerNum * dimension];
+        PointMatrix sample = this.sample();
+        this.spread = spread(sample);
+        this.centers = initializer.initCenters(sample, centerNum, this.rand);
+    }
+
+    /**
+     * Take steps until centers stop moving, or until maxSteps steps have been taken.
+     *
+     * @param maxSteps maximum number of steps
+     * @return true if converged
+     */
+    public boolean fit(int maxSteps) {
+        for (int i = 0; i < maxSteps; i++) {
+            if (this.iterate()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take one step - sample a batch, assign its points and move centers towards them.
+     *
+     * @return true if no center moved farther than the tolerance (times the spread of data) by
+     * learning from its points
+     */
+    public boolean iterate() {
+        int dimension = this.points.dimension();
+        int pointsCount = this.points.pointsCount();
+        double[] data = this.points.data();
+        System.arraycopy(this.centers, 0, this.lastCenters, 0, this.centers.length);
+
+        // sample a batch and assign every point to its nearest center
+        for (int b = 0; b < this.batchSize; b++) {
+            int index = this.rand.nextInt(pointsCount);
+            this.batch[b] = index;
+            this.batchLabels[b] = nearestCenter(data, index * dimension, this.centers,
+                    this.centerNum, dimension);
+        }
+
+        // move every center towards its points, with learning rate weight / total weight
+        for (int b = 0; b < this.batchSize; b++) {
+            int index = this.batch[b];
+            double weight = this.points.weight(index);
+            int label = this.batchLabels[b];
+            int offset = index * dimension;
+            int centerOffset = label * dimension;
+            this.batchCosts[b] = weight * KmeansPlusPlusInitializer.squaredDistance(
+                    data, offset, this.centers, centerOffset, dimension);
+            if (weight == 0) {
+                continue;
+            }
+            this.centerCounts[label] += weight;
+            double learningRate = weight / this.centerCounts[label];
+            for (int d = 0; d < dimension; d++) {
+                this.centers[centerOffset + d] +=
+                        learningRate * (data[offset + d] - this.centers[centerOffset + d]);
+            }
+        }
+
+        // the largest distance moved by a center, before any is reassigned
+        double maxShift = 0;
+        for (int k = 0; k < this.centerNum; k++) {
+            double shift = LloydEngine.euclideanDistance(
+                    this.centers, k * dimension, this.lastCenters, k * dimension, dimension);
+            maxShift = Math.max(maxShift, shift);
+        }
+        this.lastShift = maxShift;
+        this.stepsTaken++;
+        this.reassignCenters(this.stepsTaken % REASSIGNMENT_INTERVAL == 0);
+        return maxShift <= this.tolerance * this.spread;
+    }
+
+    /**
+     * Move centers that have been given no weight, or much less weight than the others, to points
+     * of the batch. A moved center takes the smallest weight of the other centers, so that it is
+     * not moved again right away.
+     *
+     * @param starved whether centers given much less weight than the others are moved too, not
+     *                only those given no weight
+     */
+    private void reassignCenters(boolean starved) {
+        double maxCount = 0;
+        for (int k = 0; k < this.centerNum; k++) {
+            maxCount = Math.max(maxCount, this.centerCounts[k]);
+        }
+        if (maxCount == 0) {
+            // no center has been given any weight yet
+            return;
+        }
+        // weights are never negative, so only a weight of 0 is below Double.MIN_VALUE
+        double threshold = starved ? REASSIGNMENT_RATIO * maxCount : Double.MIN_VALUE;
+        double minCount = Double.POSITIVE_INFINITY;
+        for (int k = 0; k < this.centerNum; k++) {
+            if (this.centerCounts[k] >= threshold) {
+                minCount = Math.min(minCount, this.centerCounts[k]);
+            }
+        }
+
+        int dimension = this.points.dimension();
+        for (int k = 0; k < this.centerNum; k++) {
+            if (this.centerCounts[k] >= threshold) {
+                continue;
+            }
+            int b = this.sampleByCost();
+            if (b < 0) {
+                // every point of the batch sits on its center - nowhere better to go
+                break;
+            }
+            this.points.copyPoint(this.batch[b], this.centers, k * dimension);
+            this.centerCounts[k] = minCount == Double.POSITIVE_INFINITY ? 0 : minCount;
+            // the point is taken, do not move another center onto it
+            this.batchCosts[b] = 0;
+        }
+    }
+
+    /**
+     * Choose a point of the batch with possibility proportional to its weighted squared distance
+     * to its center.
+     *
+     * @return index of the point in the batch, or -1 if all distances are 0
+     */
+    private int sampleByCost() {
+        double totalCost = 0;
+        for (int b = 0; b < this.batchSize; b++) {
+            totalCost += this.batchCosts[b];
+        }
+        if (!(totalCost > 0)) {
+            return -1;
+        }
+        double target = this.rand.nextDouble() * totalCost;
+        for (int b = 0; b < this.batchSize; b++) {
+            target -= this.batchCosts[b];
+            if (target < 0 && this.batchCosts[b] > 0) {
+                return b;
+            }
+        }
+        // rounding - take the last point with any cost
+        for (int b = this.batchSize - 1; b >= 0; b--) {
+            if (this.batchCosts[b] > 0) {
+                return b;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Set the tolerance of convergence - iteration stops when no center moves farther than this
+     * times the spread of the data in a step.
+     *
+     * @param tolerance distance tolerance, relative to the spread of data
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Get a copy of the current centers.
+     *
+     * @return row-major matrix of centers (centerNum * dimension)
+     */
+    public double[] getCenters() {
+        return this.centers.clone();
+    }
+
+    /**
+     * Assign all data points to their nearest centers. This passes over all the data.
+     *
+     * @return labels of data points
+     */
+    public int[] getLabels() {
+        int dimension = this.points.dimension();
+        double[] data = this.points.data();
+        int[] labels = new int[this.points.pointsCount()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = nearestCenter(data, i * dimension, this.centers, this.centerNum,
+                    dimension);
+        }
+        return labels;
+    }
+
+    /**
+     * Calculate the (weighted) within-cluster sum of squares of all data points. This passes over
+     * all the data.
+     *
+     * @return inertia
+     */
+    public double inertia() {
+        int dimension = this.points.dimension();
+        double[] data = this.points.data();
+        double inertia = 0;
+        for (int i = 0; i < this.points.pointsCount(); i++) {
+            int label = nearestCenter(data, i * dimension, this.centers, this.centerNum,
+                    dimension);
+            inertia += this.points.weight(i) * KmeansPlusPlusInitializer.squaredDistance(
+                    data, i * dimension, this.centers, label * dimension, dimension);
+        }
+        return inertia;
+    }
+
+    /**
+     * Get the number of steps taken.
+     *
+     * @return steps taken
+     */
+    public int stepsTaken() {
+        return this.stepsTaken;
+    }
+
+    /**
+     * Get the largest distance a center moved by learning in the last step, not counting centers
+     * moved by reassignment.
+     *
+     * @return center shift of the last step
+     */
+    public double lastShift() {
+        return this.lastShift;
+    }
+
+    /**
+     * Create and get a dataset that fits for imaging.
+     *
+     * @return a dataset fitting for imaging
+     */
+    public GMMDataset getDatasetForImaging() {
+        GMMDataset dataset = this.points.toGMMDataset(this.getLabels(), this.centerNum,
+                "optimized");
+        int dimension = this.points.dimension();
+        XYSeries centerSeries = new XYSeries("centers");
+        for (int i = 0; i < this.centerNum; i++) {
+            double x = this.centers[i * dimension];
+            double y = dimension > 1 ? this.centers[i * dimension + 1] : 0;
+            centerSeries.add(x, y);
+        }
+        dataset.addSeries(centerSeries);
+        return dataset;
+    }
+
+    /**
+     * Find the center nearest to a point.
+     *
+     * @param data      array containing the point
+     * @param offset    offset of the point in data
+     * @param centers   row-major matrix of centers
+     * @param centerNum number of centers
+     * @param dimension dimension of points
+     * @return index of the nearest center
+     */
+    static int nearestCenter(double[] data, int offset, double[] centers, int centerNum,
+                             int dimension) {
+        int centerSelected = 0;
+        double minDistance = Double.POSITIVE_INFINITY;
+        for (int l = 0; l < centerNum; l++) {
+            double distance = KmeansPlusPlusInitializer.squaredDistance(
+                    data, offset, centers, l * dimension, dimension);
+            if (distance < minDistance) {
+                minDistance = distance;
+                centerSelected = l;
+            }
+        }
+        return centerSelected;
+    }
+
+    /**
+     * Take a uniformly random sample of data points for choosing initial centers.
+     *
+     * @return sampled points, or all points if there are not many
+     */
+    private PointMatrix sample() {
+        int pointsCount = this.points.pointsCount();
+        int sampleSize = Math.max(MAX_INIT_SAMPLE, this.centerNum);
+        if (pointsCount <= sampleSize) {
+            return this.points;
+        }
+        int dimension = this.points.dimension();
+        PointMatrix sample = new PointMatrix(sampleSize, dimension);
+        double[] weights = this.points.weights() == null ? null : new double[sampleSize];
+        for (int i = 0; i < sampleSize; i++) {
+            int index = this.rand.nextInt(pointsCount);
+            this.points.copyPoint(index, sample.data(), i * dimension);
+            if (weights != null) {
+                weights[i] = this.points.weight(index);
+            }
+        }
+        if (weights != null) {
+            sample.setWeights(weights);
+        }
+        return sample;
+    }
+
+    /**
+     * Calculate the spread of points - the root mean squared distance of points to their mean,
+     * with points weighted.
+     *
+     * @param points data points
+     * @return spread of points, or 1 if it is 0 (all points at the same place)
+     */
+    private static double spread(PointMatrix points) {
+        int dimension = points.dimension();
+        double[] data = points.data();
+        double totalWeight = points.totalWeight();
+        double[] mean = new double[dimension];
+        for (int i = 0; i < points.pointsCount(); i++) {
+            double weight = points.weight(i);
+            for (int d = 0; d < dimension; d++) {
+                mean[d] += weight * data[i * dimension + d];
+            }
+        }
+        double sumOfSquares = 0;
+        for (int i = 0; i < points.pointsCount(); i++) {
+            double weight = points.weight(i);
+            for (int d = 0; d < dimension; d++) {
+                double diff = data[i * dimension + d] - mean[d] / totalWeight;
+                sumOfSquares += weight * diff * diff;
+            }
+        }
+        double spread = Math.sqrt(sumOfSquares / totalWeight);
+        return spread > 0 ? spread : 1;
+    }
+}
@@ -0,0 +1,269 @@
+package kmeans;
+
+import java.util.Arrays;
+
+/**
+ * Online K-means for a continuous feed of data points. Points are added one at a time or in small
+ * batches, and every point moves only its nearest center. Memory does not grow with the number of
+ * points added, and the current centers can be read at any moment (also from another thread).
+ *
+ * There are 3 ways of weighing old points:
+ * - cumulative: every point ever added counts the same (learning rate 1 / n);
+ * - decay: the weight of a point is multiplied by a decay factor for every later point, so the
+ * centers follow the recent points;
+ * - window: only the last windowSize points count. They are kept in a ring buffer, and a point
+ * leaving the window is removed from the cluster it was added to.
+ *
+ * The first centerNum points become the initial centers.
+ */
+public class OnlineKmeans {
+
+    // which represents the value of "K" in "K-means"
+    private final int centerNum;
+
+    private final int dimension;
+
+    // decay factor of weights per point added; 1 for no decay
+    private final double decay;
+
+    // size of the sliding window; 0 for no window
+    private final int windowSize;
+
+    // row-major matrix of center points (centerNum * dimension) - \miu
+    private final double[] centers;
+
+    // weight of every center (number of points for cumulative and window modes)
+    private final double[] weights;
+
+    // when every center was last updated (in number of points added), for decaying its weight
+    private final long[] lastUpdates;
+
+    // number of points added
+    private long pointsAdded = 0;
+
+    // number of initial centers set so far
+    private int centersSet = 0;
+
+    // window mode only - ring buffer of points in the window and the clusters they were added to
+    private final double[] windowPoints;
+    private final int[] windowLabels;
+
+    // window mode only - per-cluster sums of coordinates of points in the window
+    private final double[] windowSums;
+
+    /**
+     * Construct online K-means in which every point ever added counts the same.
+     *
+     * @param centerNum number of centers - "K"
+     * @param dimension dimension of data points
+     */
+    public OnlineKmeans(int centerNum, int dimension) {
+        this(centerNum, dimension, 1.0, 0);
+    }
+
+    private OnlineKmeans(int centerNum, int dimension, double decay, int windowSize) {
+        if (centerNum <= 0 || dimension <= 0 || decay <= 0 || decay > 1 || windowSize < 0
+                || (windowSize > 0 && windowSize < centerNum)) {
+            throw new IllegalArgumentException("Online K-means - invalid arguments: centerNum "
+                    + centerNum + ", dimension " + dimension + ", decay " + decay
+                    + ", windowSize " + windowSize + ". ");
+        }
+        this.centerNum = centerNum;
+        this.dimension = dimension;
+        this.decay = decay;
+        this.windowSize = windowSize;
+        this.centers = new double[centerNum * dimension];
+        this.weights = new double[centerNum];
+        this.lastUpdates = new long[centerNum];
+        this.windowPoints = new double[windowSize * dimension];
+        this.windowLabels = new int[windowSize];
+        this.windowSums = new double[windowSize > 0 ? centerNum * dimension : 0];
+    }
+
+    /**
+     * Construct online K-means in which the weight of a point decays exponentially.
+     *
+     * @param centerNum number of centers - "K"
+     * @param dimension dimension of data points
+     * @param decay     factor in (0, 1] multiplied to weights for every point added
+     * @return online K-means with decay
+     */
+    public static OnlineKmeans withDecay(int centerNum, int dimension, double decay) {
+        return new OnlineKmeans(centerNum, dimension, decay, 0);
+    }
+
+    /**
+     * Construct online K-means over a sliding window of the latest points.
+     *
+     * @param centerNum  number of centers - "K"
+     * @param dimension  dimension of data points
+     * @param windowSize number of latest points that count, at least centerNum
+     * @return online K-means over a sliding window
+     */
+    public static OnlineKmeans withWindow(int centerNum, int dimension, int windowSize) {
+        return new OnlineKmeans(centerNum, dimension, 1.0, windowSize);
+    }
+
+    /**
+     * Add a data point and update its nearest center.
+     *
+     * @param point coordinates of the point
+     * @return index of the cluster the point is assigned to
+     */
+    public synchronized int add(double[] point) {
+        return this.addPoint(point, 0);
+    }
+
+    /**
+     * Add a batch of data points, one after another.
+     *
+     * @param points row-major coordinates of points
+     * @param count  number of points
+     */
+    public synchronized void addAll(double[] points, int count) {
+        for (int i = 0; i < count; i++) {
+            this.addPoint(points, i * this.dimension);
+        }
+    }
+
+    /**
+     * Get a copy of the current centers.
+     *
+     * @return row-major matrix of centers (centerNum * dimension)
+     */
+    public synchronized double[] getCenters() {
+        return this.centers.clone();
+    }
+
+    /**
+     * Whether all centers have been initialized - i.e. at least centerNum points have been added.
+     *
+     * @return true if all centers have been initialized
+     */
+    public synchronized boolean ready() {
+        return this.centersSet == this.centerNum;
+    }
+
+    /**
+     * Get the number of points added so far.
+     *
+     * @return number of points added
+     */
+    public synchronized long pointsAdded() {
+        return this.pointsAdded;
+    }
+
+    /**
+     * Add a point and update its nearest center.
+     *
+     * @param data   array containing the point
+     * @param offset offset of the point in data
+     * @return index of the cluster the point is assigned to
+     */
+    private int addPoint(double[] data, int offset) {
+        int label;
+        if (this.centersSet < this.centerNum) {
+            // the first points become the initial centers
+            label = this.centersSet++;
+            System.arraycopy(data, offset, this.centers, label * this.dimension, this.dimension);
+            this.weights[label] = 1;
+            this.lastUpdates[label] = this.pointsAdded;
+            if (this.windowSize > 0) {
+                System.arraycopy(data, offset, this.windowSums, label * this.dimension,
+                        this.dimension);
+            }
+        } else {
+            label = MiniBatchKmeans.nearestCenter(data, offset, this.centers, this.centerNum,
+                    this.dimension);
+            if (this.windowSize > 0) {
+                this.addToWindowCluster(data, offset, label);
+            } else {
+                this.moveCenter(data, offset, label);
+            }
+        }
+
+        if (this.windowSize > 0) {
+            this.pushToWindow(data, offset, label);
+        }
+        this.pointsAdded++;
+        return label;
+    }
+
+    /**
+     * Move a center towards a point (cumulative and decay modes).
+     */
+    private void moveCenter(double[] data, int offset, int label) {
+        double weight = this.weights[label];
+        if (this.decay < 1) {
+            weight *= Math.pow(this.decay, this.pointsAdded - this.lastUpdates[label]);
+        }
+        weight += 1;
+        this.weights[label] = weight;
+        this.lastUpdates[label] = this.pointsAdded;
+
+        double learningRate = 1.0 / weight;
+        int centerOffset = label * this.dimension;
+        for (int d = 0; d < this.dimension; d++) {
+            this.centers[centerOffset + d] += learningRate * (data[offset + d]
+                    - this.centers[centerOffset + d]);
+        }
+    }
+
+    /**
+     * Add a point to the window sums of a cluster and recenter it (window mode).
+     */
+    private void addToWindowCluster(double[] data, int offset, int label) {
+        int centerOffset = label * this.dimension;
+        for (int d = 0; d < this.dimension; d++) {
+            this.windowSums[centerOffset + d] += data[offset + d];
+        }
+        this.weights[label]++;
+        this.recenterFromWindow(label);
+    }
+
+    /**
+     * Put a point into the ring buffer. If the window is full, the oldest point is removed from
+     * the cluster it was added to first.
+     */
+    private void pushToWindow(double[] data, int offset, int label) {
+        int slot = (int) (this.pointsAdded % this.windowSize);
+        int slotOffset = slot * this.dimension;
+        if (this.pointsAdded >= this.windowSize) {
+            int oldLabel = this.windowLabels[slot];
+            int centerOffset = oldLabel * this.dimension;
+            for (int d = 0; d < this.dimension; d++) {
+                this.windowSums[centerOffset + d] -= this.windowPoints[slotOffset + d];
+            }
+            this.weights[oldLabel]--;
+            this.recenterFromWindow(oldLabel);
+        }
+        System.arraycopy(data, offset, this.windowPoints, slotOffset, this.dimension);
+        this.windowLabels[slot] = label;
+
+        // once per window, add the sums up again to get rid of rounding errors of subtracting
+        if (slot == this.windowSize - 1) {
+            Arrays.fill(this.windowSums, 0);
+            for (int i = 0; i < this.windowSize; i++) {
+                int centerOffset = this.windowLabels[i] * this.dimension;
+                for (int d = 0; d < this.dimension; d++) {
+                    this.windowSums[centerOffset + d] += this.windowPoints[i * this.dimension + d];
+                }
+            }
+        }
+    }
+
+    /**
+     * Recenter a cluster with the window sums. A cluster with no point in the window stays where
+     * it is.
+     */
+    private void recenterFromWindow(int label) {
+        double count = this.weights[label];
+        if (count <= 0) {
+            return;
+        }
+        int centerOffset = label * this.dimension;
+        for (int d = 0; d < this.dimension; d++) {
+            this.centers[centerOffset + d] = this.windowSums[centerOffset + d] / count;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import dataset.PointMatrix;
+import dataset.PointSource;
+
+/**
+ * K-means over a point source that need not fit on the heap, e.g. a MappedPointFile. Every step
+ * streams through the points in sequential chunks, copying one chunk at a time into a reused
+ * buffer, classifying its points and adding them to the running sums of their clusters. Only
+ * the buffer, the centers and the sums are held on the heap - labels are not kept, and are only
+ * calculated on request.
+ *
+ * Weights of a PointMatrix source are honored like in LloydEngine: a point of weight w counts as w
+ * points at the same place in the sums, the counts and the inertia.
+ */
+public class OutOfCoreKmeans {
+
+    // number of points read per chunk
+    private static final int CHUNK_POINTS = 65536;
+
+    // initial centers are chosen from a random sample of at most this number of points
+    private static final int MAX_INIT_SAMPLE = 10000;
+
+    private final PointSource source;
+
+    // weight of every point; null if points are not weighted
+    private final double[] weights;
+
+    // which represents the value of "K" in "K-means"
+    private final int centerNum;
+
+    // row-major matrix of center points (centerNum * dimension) - \miu
+    private final double[] centers;
+
+    // within-cluster sum of squares of the last step
+    private double inertia = Double.NaN;
+
+    // buffer of a chunk of points, and its capacity in points
+    private final double[] chunk;
+    private final int chunkPoints;
+
+    // dimension-major copy of centers, and squared distances from a point to all centers
+    private final double[] transposedCenters;
+    private final double[] distances;
+
+    // per-cluster weighted sums of coordinates (centerNum * dimension) and total weights of points
+    private final double[] sums;
+    private final double[] counts;
+
+    /**
+     * Construct out-of-core K-means with K-means++ initialization on a sample of the points.
+     *
+     * @param source    data points; weights of a PointMatrix are honored
+     * @param centerNum number of centers - "K"
+     * @param seed      seed for choosing initial centers
+     */
+    public OutOfCoreKmeans(PointSource source, int centerNum, long seed) {
+        this(source, centerNum, seed, new KmeansPlusPlusInitializer());
+    }
+
+    /**
+     * Construct out-of-core K-means.
+     *
+     * @param source      data points; weights of a PointMatrix are honored
+     * @param centerNum   number of centers - "K"
+     * @param seed        seed for choosing initial centers
+     * @param initializer way of choosing initial centers, applied to a sample of the points
+     */
+    public OutOfCoreKmeans(PointSource source, int centerNum, long seed,
+                           CenterInitializer initializer) {
+        if (centerNum <= 0 || centerNum > source.pointsCount()) {
+            throw new IllegalArgumentException("Out-of-core K-means - invalid number of centers: "
+                    + centerNum + " (points count: " + source.pointsCount() + "). ");
+        }
+        this.source = source;
+        this.weights = source instanceof PointMatrix ? ((PointMatrix) source).weights() : null;
+        this.centerNum = centerNum;
+
+        int dimension = source.dimension();
+        this.chunkPoints = Math.min(CHUNK_POINTS, source.pointsCount());
+        this.chunk = new double[this.chunkPoints * dimension];
+        this.transposedCenters = new double[centerNum * dimension];
+        this.distances = new double[centerNum];
+        this.sums = new double[centerNum * dimension];
+        this.counts = new double[centerNum];
+
+        Random rand = new Random(seed);
+        this.centers = initializer.initCenters(
+                sample(source, Math.max(MAX_INIT_SAMPLE, centerNum), rand), centerNum, rand);
+    }
+
+    /**
+     * Classify and recenter the data points for a specific step.
+     *
+     * @param steps steps taken to (classify & recenter)
+     */
+    public void iterate(int steps) {
+        int dimension = this.source.dimension();
+        for (int i = 0; i < steps; i++) {
+            Arrays.fill(this.sums, 0);
+            Arrays.fill(this.counts, 0);
+            DistanceKernel.transpose(this.centers, this.centerNum, dimension,
+                    this.transposedCenters);
+
+            double inertia = 0;
+            int pointsCount = this.source.pointsCount();
+            for (int from = 0; from < pointsCount; from += this.chunkPoints) {
+                int count = Math.min(this.chunkPoints, pointsCount - from);
+                this.source.readPoints(from, count, this.chunk);
+                for (int p = 0; p < count; p++) {
+                    int offset = p * dimension;
+                    int centerSelected = DistanceKernel.nearest(this.chunk, offset,
+                            this.transposedCenters, this.centerNum, dimension, this.distances);
+                    double weight = this.weights == null ? 1 : this.weights[from + p];
+                    inertia += weight * this.distances[centerSelected];
+                    int sumOffset = centerSelected * dimension;
+                    for (int d = 0; d < dimension; d++) {
+                        this.sums[sumOffset + d] += weight * this.chunk[offset + d];
+                    }
+                    this.counts[centerSelected] += weight;
+                }
+            }
+
+            // recenter
+            for (int k = 0; k < this.centerNum; k++) {
+                if (!(this.counts[k] > 0)) {
+                    continue;
+                }
+                for (int d = 0; d < dimension; d++) {
+                    this.centers[k * dimension + d] = this.sums[k * dimension + d] / this.counts[k];
+                }
+            }
+            this.inertia = inertia;
+        }
+    }
+
+    /**
+     * Assign all data points to their nearest centers. This passes over all the data.
+     *
+     * @return labels of data points
+     */
+    public int[] getLabels() {
+        int dimension = this.source.dimension();
+        int pointsCount = this.source.pointsCount();
+        int[] labels = new int[pointsCount];
+        DistanceKernel.transpose(this.centers, this.centerNum, dimension, this.transposedCenters);
+        for (int from = 0; from < pointsCount; from += this.chunkPoints) {
+            int count = Math.min(this.chunkPoints, pointsCount - from);
+            this.source.readPoints(from, count, this.chunk);
+            for (int p = 0; p < count; p++) {
+                labels[from + p] = DistanceKernel.nearest(this.chunk, p * dimension,
+                        this.transposedCenters, this.centerNum, dimension, this.distances);
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Get a copy of the current centers.
+     *
+     * @return row-major matrix of centers (centerNum * dimension)
+     */
+    public double[] getCenters() {
+        return this.centers.clone();
+    }
+
+    /**
+     * Get the within-cluster sum of squares (inertia) of the last step.
+     *
+     * @return inertia, or NaN if no step has been taken
+     */
+    public double inertia() {
+        return this.inertia;
+    }
+
+    /**
+     * Take a uniformly random sample of data points, e.g. for choosing initial centers. Sampled
+     * points keep their weights if the source is a weighted PointMatrix.
+     *
+     * @param source     data points
+     * @param sampleSize maximum number of points sampled; all points are taken if there are fewer
+     * @param rand       random number generator
+     * @return sampled points on the heap
+     */
+    static PointMatrix sample(PointSource source, int sampleSize, Random rand) {
+        int pointsCount = source.pointsCount();
+        int dimension = source.dimension();
+        sampleSize = Math.min(pointsCount, sampleSize);
+        PointMatrix sample = new PointMatrix(sampleSize, dimension);
+        double[] weights = source instanceof PointMatrix ? ((PointMatrix) source).weights() : null;
+        if (sampleSize == pointsCount) {
+            source.readPoints(0, pointsCount, sample.data());
+            sample.setWeights(weights == null ? null : weights.clone());
+            return sample;
+        }
+        double[] point = new double[dimension];
+        double[] sampleWeights = weights == null ? null : new double[sampleSize];
+        for (int i = 0; i < sampleSize; i++) {
+            int index = rand.nextInt(pointsCount);
+            source.readPoints(index, 1, point);
+            System.arraycopy(point, 0, sample.data(), i * dimension, dimension);
+            if (sampleWeights != null) {
+                sampleWeights[i] = weights[index];
+            }
+        }
+        sample.setWeights(sampleWeights);
+        return sample;
+    }
+}
@@ -0,0 +1,23 @@
+package kmeans;
+
+import java.util.Random;
+
+import dataset.PointMatrix;
+
+/**
+ * Choose every initial center as a uniformly random data point.
+ */
+public class RandomInitializer implements CenterInitializer {
+
+    @Override
+    public double[] initCenters(PointMatrix points, int centerNum, Random rand) {
+        int dimension = points.dimension();
+        int pointsCount = points.pointsCount();
+        double[] centers = new double[centerNum * dimension];
+        for (int i = 0; i < centerNum; i++) {
+            // select a random data point
+            points.copyPoint(rand.nextInt(pointsCount), centers, i * dimension);
+        }
+        return centers;
+    }
+}
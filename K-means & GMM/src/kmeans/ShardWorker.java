@@ -0,0 +1,430 @@
+package kmeans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import dataset.MappedPointFile;
+import dataset.PointMatrix;
+
+/**
+ * A worker process of ShardedKmeans. The worker holds one shard of the data points and, for every
+ * step, classifies its points against the centers broadcast by the coordinator and replies with
+ * the per-cluster sums and counts of its shard (not the points, nor the labels).
+ *
+ * Usage: ShardWorker port [parallelism [bindAddress]]. With port 0 an ephemeral port is chosen.
+ * The worker prints "PORT n" on standard output once it listens, serves a single coordinator and
+ * exits when the coordinator shuts it down or disconnects. It binds to the loopback address
+ * unless told otherwise.
+ *
+ * Protocol (DataInput / DataOutput, big-endian): every request is a command byte followed by its
+ * arguments; every reply starts with a boolean telling whether the command succeeded, followed by
+ * the results, or by an error message if it failed.
+ */
+public class ShardWorker {
+
+    // load points sent over the connection: dimension, count, coordinates, has weights, [weights]
+    static final byte LOAD_POINTS = 1;
+
+    // load a range of a MappedPointFile: path, dimension, first point, count
+    static final byte LOAD_FILE = 2;
+
+    // classify against centers: centerNum, dimension, centers -> inertia, counts, sums
+    static final byte STEP = 3;
+
+    // get the labels of the last step: -> count, labels
+    static final byte LABELS = 4;
+
+    // stop the worker
+    static final byte SHUTDOWN = 5;
+
+    // doubles per bulk transfer
+    private static final int TRANSFER_DOUBLES = 8192;
+
+    private final DataInputStream in;
+
+    private final DataOutputStream out;
+
+    // number of threads of the engine
+    private final int parallelism;
+
+    // the shard of data points
+    private PointMatrix points = null;
+
+    // engine over the shard, created for the number of centers of the first step
+    private ChunkedEngine engine = null;
+
+    // labels of the shard after the last step
+    private int[] labels = null;
+
+    // buffers of the last step
+    private double[] centers = null;
+    private double[] sums = null;
+    private double[] counts = null;
+
+    // buffer for bulk transfers
+    private final byte[] transfer = new byte[TRANSFER_DOUBLES * Double.BYTES];
+
+    /**
+     * Construct a worker serving a connection.
+     *
+     * @param socket      connection to the coordinator
+     * @param parallelism number of threads for a step
+     * @throws IOException if the streams of the socket can not be opened
+     */
+    public ShardWorker(Socket socket, int parallelism) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.parallelism = parallelism;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        InetAddress address = args.length > 2 ? InetAddress.getByName(args[2])
+                : InetAddress.getLoopbackAddress();
+        try (ServerSocket server = new ServerSocket(port, 1, address)) {
+            System.out.println("PORT " + server.getLocalPort());
+            System.out.flush();
+            try (Socket socket = server.accept()) {
+                socket.setTcpNoDelay(true);
+                new ShardWorker(socket, parallelism).serve();
+            }
+        }
+    }
+
+    /**
+     * Start a worker in a new JVM on this machine, with the same class path as this JVM, and wait
+     * until it listens.
+     *
+     * @param parallelism number of threads of the worker
+     * @return the started worker
+     * @throws IOException if the worker can not be started
+     */
+    public static Local launchLocal(int parallelism) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                ShardWorker.class.getName(), "0", String.valueOf(parallelism));
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        if (line == null || !line.startsWith("PORT ")) {
+            process.destroy();
+            throw new IOException("Shard worker - worker did not report its port: " + line + ". ");
+        }
+        int port = Integer.parseInt(line.substring("PORT ".length()).trim());
+        return new Local(process, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Serve requests until the coordinator shuts the worker down or disconnects.
+     *
+     * @throws IOException if the connection fails
+     */
+    public void serve() throws IOException {
+        while (true) {
+            int command = this.in.read();
+            if (command < 0 || command == SHUTDOWN) {
+                return;
+            }
+            try {
+                switch (command) {
+                    case LOAD_POINTS:
+                        this.loadPoints();
+                        break;
+                    case LOAD_FILE:
+                        this.loadFile();
+                        break;
+                    case STEP:
+                        this.step();
+                        break;
+                    case LABELS:
+                        this.labels();
+                        break;
+                    default:
+                        throw new IOException("Shard worker - unknown command: " + command + ". ");
+                }
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // the request has been read completely, so the connection can go on
+                this.out.writeBoolean(false);
+                this.out.writeUTF(String.valueOf(e.getMessage()));
+            }
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Load the shard from points sent by the coordinator.
+     *
+     * @throws IOException if the connection fails
+     */
+    private void loadPoints() throws IOException {
+        int dimension = this.in.readInt();
+        int count = this.in.readInt();
+        int size = this.valueCount(count, dimension);
+        if (size < 0) {
+            // skip the points to keep the connection in sync
+            skipDoubles(this.in, (long) count * dimension, this.transfer);
+            if (this.in.readBoolean()) {
+                skipDoubles(this.in, count, this.transfer);
+            }
+            throw new IllegalArgumentException("Shard worker - " + count + " points of dimension "
+                    + dimension + " are too many to fit in an array. ");
+        }
+        double[] data = new double[size];
+        readDoubles(this.in, data, 0, size, this.transfer);
+        double[] weights = null;
+        if (this.in.readBoolean()) {
+            weights = new double[count];
+            readDoubles(this.in, weights, 0, count, this.transfer);
+        }
+        PointMatrix points = new PointMatrix(data, dimension);
+        points.setWeights(weights);
+        this.setPoints(points);
+        this.out.writeBoolean(true);
+    }
+
+    /**
+     * Load the shard from a range of a point file, which the worker can read itself. A file that
+     * can not be read is reported to the coordinator like any other invalid request.
+     *
+     * @throws IOException if the connection fails
+     */
+    private void loadFile() throws IOException {
+        String path = this.in.readUTF();
+        int dimension = this.in.readInt();
+        int from = this.in.readInt();
+        int count = this.in.readInt();
+        try (MappedPointFile file = new MappedPointFile(Paths.get(path), dimension)) {
+            if (from < 0 || count < 0 || from + count > file.pointsCount()) {
+                throw new IllegalArgumentException("Shard worker - points [" + from + ", "
+                        + (from + count) + ") out of " + file.pointsCount() + " in " + path + ". ");
+            }
+            PointMatrix points = new PointMatrix(count, dimension);
+            file.readPoints(from, count, points.data());
+            this.setPoints(points);
+        } catch (IOException e) {
+            // the request has been read completely - only the file failed, not the connection
+            throw new IllegalArgumentException("Shard worker - can not read " + path + ": " + e
+                    + ". ", e);
+        }
+        this.out.writeBoolean(true);
+    }
+
+    /**
+     * Classify the shard against broadcast centers, and reply with per-cluster sums and counts.
+     *
+     * @throws IOException if the connection fails
+     */
+    private void step() throws IOException {
+        int centerNum = this.in.readInt();
+        int dimension = this.in.readInt();
+        int size = this.valueCount(centerNum, dimension);
+        if (size < 0 || this.points == null || this.points.dimension() != dimension) {
+            // skip the centers to keep the connection in sync
+            skipDoubles(this.in, (long) centerNum * dimension, this.transfer);
+            if (size < 0) {
+                throw new IllegalArgumentException("Shard worker - " + centerNum
+                        + " centers of dimension " + dimension + " are too many. ");
+            }
+            throw new IllegalStateException("Shard worker - no points of dimension "
+                    + dimension + " loaded. ");
+        }
+        if (this.engine == null || this.counts.length != centerNum) {
+            this.releaseEngine();
+            this.engine = new LloydEngine(this.points, centerNum);
+            this.engine.setParallelism(this.parallelism);
+            this.centers = new double[centerNum * dimension];
+            this.sums = new double[centerNum * dimension];
+            this.counts = new double[centerNum];
+        }
+        readDoubles(this.in, this.centers, 0, this.centers.length, this.transfer);
+
+        double inertia = this.engine.accumulate(this.centers, this.labels, this.sums, this.counts);
+        this.out.writeBoolean(true);
+        this.out.writeDouble(inertia);
+        writeDoubles(this.out, this.counts, 0, this.counts.length, this.transfer);
+        writeDoubles(this.out, this.sums, 0, this.sums.length, this.transfer);
+    }
+
+    /**
+     * Reply with the labels of the shard after the last step.
+     *
+     * @throws IOException if the connection fails
+     */
+    private void labels() throws IOException {
+        if (this.engine == null) {
+            throw new IllegalStateException("Shard worker - no step taken. ");
+        }
+        this.out.writeBoolean(true);
+        this.out.writeInt(this.labels.length);
+        for (int label : this.labels) {
+            this.out.writeInt(label);
+        }
+    }
+
+    /**
+     * Replace the shard of points, dropping the engine of the old shard.
+     *
+     * @param points new shard
+     */
+    private void setPoints(PointMatrix points) {
+        this.points = points;
+        this.labels = new int[points.pointsCount()];
+        this.releaseEngine();
+    }
+
+    /**
+     * Shut down the threads of the engine, if any, and drop it.
+     */
+    private void releaseEngine() {
+        if (this.engine != null) {
+            this.engine.close();
+            this.engine = null;
+        }
+    }
+
+    /**
+     * Get the number of values of a request holding rows of a given length.
+     *
+     * @param rows   number of rows, as sent by the coordinator
+     * @param length values per row, as sent by the coordinator
+     * @return rows * length, or -1 if that does not fit in an array
+     * @throws IOException if either is negative, as the rest of the request can then not be told
+     *                     apart from the next one
+     */
+    private int valueCount(int rows, int length) throws IOException {
+        if (rows < 0 || length < 0) {
+            throw new IOException("Shard worker - invalid request of " + rows + " rows of "
+                    + length + " values. ");
+        }
+        try {
+            return Math.multiplyExact(rows, length);
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Write doubles in bulk, in the byte order of DataOutput.
+     *
+     * @param out      destination stream
+     * @param values   array of values
+     * @param from     first index to write
+     * @param count    number of values to write
+     * @param transfer buffer of whole doubles
+     * @throws IOException if writing fails
+     */
+    static void writeDoubles(DataOutputStream out, double[] values, int from, int count,
+                             byte[] transfer) throws IOException {
+        DoubleBuffer buffer = ByteBuffer.wrap(transfer).asDoubleBuffer();
+        int capacity = transfer.length / Double.BYTES;
+        for (int done = 0; done < count; done += capacity) {
+            int length = Math.min(capacity, count - done);
+            buffer.clear();
+            buffer.put(values, from + done, length);
+            out.write(transfer, 0, length * Double.BYTES);
+        }
+    }
+
+    /**
+     * Read doubles in bulk, in the byte order of DataInput.
+     *
+     * @param in       source stream
+     * @param values   array receiving the values
+     * @param from     first index to fill
+     * @param count    number of values to read
+     * @param transfer buffer of whole doubles
+     * @throws IOException if reading fails
+     */
+    static void readDoubles(DataInputStream in, double[] values, int from, int count,
+                            byte[] transfer) throws IOException {
+        DoubleBuffer buffer = ByteBuffer.wrap(transfer).asDoubleBuffer();
+        int capacity = transfer.length / Double.BYTES;
+        for (int done = 0; done < count; done += capacity) {
+            int length = Math.min(capacity, count - done);
+            in.readFully(transfer, 0, length * Double.BYTES);
+            buffer.clear();
+            buffer.get(values, from + done, length);
+        }
+    }
+
+    /**
+     * Skip doubles in bulk, through the transfer buffer, so that skipping any number of them
+     * allocates nothing.
+     *
+     * @param in       source stream
+     * @param count    number of values to skip
+     * @param transfer buffer of whole doubles
+     * @throws IOException if reading fails
+     */
+    static void skipDoubles(DataInputStream in, long count, byte[] transfer) throws IOException {
+        int capacity = transfer.length / Double.BYTES;
+        for (long done = 0; done < count; done += capacity) {
+            int length = (int) Math.min(capacity, count - done);
+            in.readFully(transfer, 0, length * Double.BYTES);
+        }
+    }
+
+    /**
+     * A worker process started on this machine by launchLocal(...).
+     */
+    public static class Local implements AutoCloseable {
+
+        private final Process process;
+
+        // address the worker listens on
+        private final InetSocketAddress address;
+
+        /**
+         * Construct a handle of a started worker.
+         *
+         * @param process worker process
+         * @param address address the worker listens on
+         */
+        Local(Process process, InetSocketAddress address) {
+            this.process = process;
+            this.address = address;
+        }
+
+        /**
+         * Get the address the worker listens on.
+         *
+         * @return socket address on the loopback interface
+         */
+        public InetSocketAddress address() {
+            return this.address;
+        }
+
+        /**
+         * Wait a moment for the worker to exit after being shut down, and kill it if it does not.
+         */
+        @Override
+        public void close() {
+            try {
+                if (!this.process.waitFor(5, TimeUnit.SECONDS)) {
+                    this.process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                this.process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
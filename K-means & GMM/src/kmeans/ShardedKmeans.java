@@ -0,0 +1,413 @@
+package kmeans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import dataset.MappedPointFile;
+import dataset.PointMatrix;
+import dataset.PointSource;
+
+/**
+ * K-means over data points sharded across worker processes (see ShardWorker). The points are
+ * split into contiguous shards, one per worker, and stay on the workers. Every step the
+ * coordinator broadcasts the centers, every worker classifies its shard and replies with
+ * per-cluster sums and counts, and the coordinator merges them and recenters. Only
+ * centerNum * (dimension + 1) numbers per worker go over the network per step.
+ *
+ * Replies are merged in the order of workers, so the result does not depend on which worker
+ * answers first.
+ */
+public class ShardedKmeans implements AutoCloseable {
+
+    // initial centers are chosen from a random sample of at most this number of points
+    private static final int MAX_INIT_SAMPLE = 10000;
+
+    // points sent per message when distributing points
+    private static final int SEND_POINTS = 65536;
+
+    // which represents the value of "K" in "K-means"
+    private final int centerNum;
+
+    private final int dimension;
+
+    // connections to workers, and their streams
+    private final Socket[] sockets;
+    private final DataInputStream[] ins;
+    private final DataOutputStream[] outs;
+
+    // number of points of every shard, in the order of workers
+    private final int[] shardSizes;
+
+    // row-major matrix of center points (centerNum * dimension) - \miu
+    private final double[] centers;
+
+    // within-cluster sum of squares of the last step
+    private double inertia = Double.NaN;
+
+    // merged per-cluster sums and counts, and the reply of one worker
+    private final double[] sums;
+    private final double[] counts;
+    private final double[] shardSums;
+    private final double[] shardCounts;
+
+    // buffer for bulk transfers
+    private final byte[] transfer = new byte[8192 * Double.BYTES];
+
+    /**
+     * Construct sharded K-means, sending the points to the workers.
+     *
+     * @param workers   addresses of running workers
+     * @param source    data points; weights of a PointMatrix are sent along
+     * @param centerNum number of centers - "K"
+     * @param seed      seed for choosing initial centers
+     * @throws IOException if a worker can not be reached or fails
+     */
+    public ShardedKmeans(List<InetSocketAddress> workers, PointSource source, int centerNum,
+                         long seed) throws IOException {
+        this(workers, source, centerNum, null);
+        try {
+            double[] weights = source instanceof PointMatrix
+                    ? ((PointMatrix) source).weights() : null;
+            double[] buffer = new double[Math.min(SEND_POINTS, source.pointsCount())
+                    * this.dimension];
+            int from = 0;
+            for (int w = 0; w < this.sockets.length; w++) {
+                DataOutputStream out = this.outs[w];
+                int count = this.shardSizes[w];
+                out.writeByte(ShardWorker.LOAD_POINTS);
+                out.writeInt(this.dimension);
+                out.writeInt(count);
+                for (int done = 0; done < count; done += SEND_POINTS) {
+                    int length = Math.min(SEND_POINTS, count - done);
+                    source.readPoints(from + done, length, buffer);
+                    ShardWorker.writeDoubles(out, buffer, 0, length * this.dimension,
+                            this.transfer);
+                }
+                out.writeBoolean(weights != null);
+                if (weights != null) {
+                    ShardWorker.writeDoubles(out, weights, from, count, this.transfer);
+                }
+                out.flush();
+                from += count;
+            }
+            this.readAcknowledgements();
+            this.initCenters(source, seed);
+        } catch (IOException | RuntimeException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Construct sharded K-means over a point file (see MappedPointFile) that every worker can read
+     * at the same path, e.g. on a shared disk. Only the ranges of the shards are sent.
+     *
+     * @param workers   addresses of running workers
+     * @param file      path of the point file
+     * @param dimension dimension of data points
+     * @param centerNum number of centers - "K"
+     * @param seed      seed for choosing initial centers
+     * @throws IOException if the file can not be read, or a worker can not be reached or fails
+     */
+    public ShardedKmeans(List<InetSocketAddress> workers, Path file, int dimension,
+                         int centerNum, long seed) throws IOException {
+        this(workers, new MappedPointFile(file, dimension), centerNum, file, seed);
+    }
+
+    /**
+     * Distribute ranges of an opened point file, and close the file afterwards.
+     *
+     * @param workers   addresses of running workers
+     * @param source    opened point file
+     * @param centerNum number of centers - "K"
+     * @param file      path of the point file
+     * @param seed      seed for choosing initial centers
+     * @throws IOException if a worker can not be reached or fails
+     */
+    private ShardedKmeans(List<InetSocketAddress> workers, MappedPointFile source, int centerNum,
+                          Path file, long seed) throws IOException {
+        this(workers, source, centerNum, source);
+        try (source) {
+            String path = file.toAbsolutePath().toString();
+            int from = 0;
+            for (int w = 0; w < this.sockets.length; w++) {
+                DataOutputStream out = this.outs[w];
+                out.writeByte(ShardWorker.LOAD_FILE);
+                out.writeUTF(path);
+                out.writeInt(this.dimension);
+                out.writeInt(from);
+                out.writeInt(this.shardSizes[w]);
+                out.flush();
+                from += this.shardSizes[w];
+            }
+            this.readAcknowledgements();
+            this.initCenters(source, seed);
+        } catch (IOException | RuntimeException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connect to the workers and split the points into shards.
+     *
+     * @param workers   addresses of running workers
+     * @param source    data points
+     * @param centerNum number of centers - "K"
+     * @param file      opened point file closed if the construction fails, or null
+     * @throws IOException if a worker can not be reached
+     */
+    private ShardedKmeans(List<InetSocketAddress> workers, PointSource source, int centerNum,
+                          MappedPointFile file) throws IOException {
+        try {
+            checkArgs(workers, source, centerNum);
+        } catch (IllegalArgumentException e) {
+            closeOnFailure(file, e);
+            throw e;
+        }
+        int pointsCount = source.pointsCount();
+        this.centerNum = centerNum;
+        this.dimension = source.dimension();
+        this.centers = new double[centerNum * this.dimension];
+        this.sums = new double[centerNum * this.dimension];
+        this.counts = new double[centerNum];
+        this.shardSums = new double[centerNum * this.dimension];
+        this.shardCounts = new double[centerNum];
+
+        int workerNum = workers.size();
+        this.shardSizes = new int[workerNum];
+        for (int w = 0; w < workerNum; w++) {
+            this.shardSizes[w] = (int) ((long) pointsCount * (w + 1) / workerNum
+                    - (long) pointsCount * w / workerNum);
+        }
+
+        this.sockets = new Socket[workerNum];
+        this.ins = new DataInputStream[workerNum];
+        this.outs = new DataOutputStream[workerNum];
+        try {
+            for (int w = 0; w < workerNum; w++) {
+                Socket socket = new Socket();
+                this.sockets[w] = socket;
+                socket.setTcpNoDelay(true);
+                socket.connect(workers.get(w));
+                this.ins[w] = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.outs[w] = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+            }
+        } catch (IOException e) {
+            this.close();
+            closeOnFailure(file, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Check the number of centers and of workers against the number of points.
+     *
+     * @param workers   addresses of running workers
+     * @param source    data points
+     * @param centerNum number of centers - "K"
+     */
+    private static void checkArgs(List<InetSocketAddress> workers, PointSource source,
+                                  int centerNum) {
+        int pointsCount = source.pointsCount();
+        if (centerNum <= 0 || centerNum > pointsCount) {
+            throw new IllegalArgumentException("Sharded K-means - invalid number of centers: "
+                    + centerNum + " (points count: " + pointsCount + "). ");
+        }
+        if (workers.isEmpty() || workers.size() > pointsCount) {
+            throw new IllegalArgumentException("Sharded K-means - invalid number of workers: "
+                    + workers.size() + " (points count: " + pointsCount + "). ");
+        }
+    }
+
+    /**
+     * Close a point file opened for a construction that failed.
+     *
+     * @param file    opened point file, or null
+     * @param failure failure of the construction, to which a failure of closing is added
+     */
+    private static void closeOnFailure(MappedPointFile file, Exception failure) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Classify and recenter the data points for a specific step.
+     *
+     * @param steps steps taken to (classify & recenter)
+     * @throws IOException if a worker fails
+     */
+    public void iterate(int steps) throws IOException {
+        for (int i = 0; i < steps; i++) {
+            // broadcast first, so that all workers classify at the same time
+            for (DataOutputStream out : this.outs) {
+                out.writeByte(ShardWorker.STEP);
+                out.writeInt(this.centerNum);
+                out.writeInt(this.dimension);
+                ShardWorker.writeDoubles(out, this.centers, 0, this.centers.length,
+                        this.transfer);
+                out.flush();
+            }
+
+            Arrays.fill(this.sums, 0);
+            Arrays.fill(this.counts, 0);
+            double inertia = 0;
+            for (int w = 0; w < this.ins.length; w++) {
+                DataInputStream in = this.ins[w];
+                this.checkReply(w);
+                inertia += in.readDouble();
+                ShardWorker.readDoubles(in, this.shardCounts, 0, this.centerNum, this.transfer);
+                ShardWorker.readDoubles(in, this.shardSums, 0, this.shardSums.length,
+                        this.transfer);
+                for (int k = 0; k < this.centerNum; k++) {
+                    this.counts[k] += this.shardCounts[k];
+                }
+                for (int j = 0; j < this.sums.length; j++) {
+                    this.sums[j] += this.shardSums[j];
+                }
+            }
+
+            // recenter
+            for (int k = 0; k < this.centerNum; k++) {
+                if (this.counts[k] == 0) {
+                    continue;
+                }
+                for (int d = 0; d < this.dimension; d++) {
+                    this.centers[k * this.dimension + d] =
+                            this.sums[k * this.dimension + d] / this.counts[k];
+                }
+            }
+            this.inertia = inertia;
+        }
+    }
+
+    /**
+     * Collect the labels of all points, assigned by the last step (i.e. against the centers
+     * before the last recentering).
+     *
+     * @return labels of data points, in the order of the original points
+     * @throws IOException if a worker fails
+     */
+    public int[] getLabels() throws IOException {
+        for (DataOutputStream out : this.outs) {
+            out.writeByte(ShardWorker.LABELS);
+            out.flush();
+        }
+        int[] labels = new int[Arrays.stream(this.shardSizes).sum()];
+        int from = 0;
+        for (int w = 0; w < this.ins.length; w++) {
+            DataInputStream in = this.ins[w];
+            this.checkReply(w);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                labels[from + i] = in.readInt();
+            }
+            from += count;
+        }
+        return labels;
+    }
+
+    /**
+     * Get a copy of the current centers.
+     *
+     * @return row-major matrix of centers (centerNum * dimension)
+     */
+    public double[] getCenters() {
+        return this.centers.clone();
+    }
+
+    /**
+     * Get the within-cluster sum of squares (inertia) of the last step.
+     *
+     * @return inertia, or NaN if no step has been taken
+     */
+    public double inertia() {
+        return this.inertia;
+    }
+
+    /**
+     * Get the number of points of every shard.
+     *
+     * @return shard sizes, in the order of workers
+     */
+    public int[] shardSizes() {
+        return this.shardSizes.clone();
+    }
+
+    /**
+     * Shut down the workers and close the connections.
+     */
+    @Override
+    public void close() {
+        for (int w = 0; w < this.sockets.length; w++) {
+            if (this.sockets[w] == null) {
+                continue;
+            }
+            try {
+                if (this.outs[w] != null) {
+                    this.outs[w].writeByte(ShardWorker.SHUTDOWN);
+                    this.outs[w].flush();
+                }
+                this.sockets[w].close();
+            } catch (IOException e) {
+                // the worker is gone already
+            }
+            this.sockets[w] = null;
+        }
+    }
+
+    /**
+     * Choose initial centers with K-means++ on a sample of the points.
+     *
+     * @param source data points
+     * @param seed   seed for sampling and K-means++
+     */
+    private void initCenters(PointSource source, long seed) {
+        Random rand = new Random(seed);
+        PointMatrix sample = OutOfCoreKmeans.sample(source,
+                Math.max(MAX_INIT_SAMPLE, this.centerNum), rand);
+        double[] centers = new KmeansPlusPlusInitializer().initCenters(sample, this.centerNum,
+                rand);
+        System.arraycopy(centers, 0, this.centers, 0, this.centers.length);
+    }
+
+    /**
+     * Read the replies of all workers to loading their shards.
+     *
+     * @throws IOException if a worker fails
+     */
+    private void readAcknowledgements() throws IOException {
+        for (int w = 0; w < this.ins.length; w++) {
+            this.checkReply(w);
+        }
+    }
+
+    /**
+     * Read the status of a reply, and throw the error of the worker if it failed.
+     *
+     * @param worker index of worker
+     * @throws IOException if the worker failed
+     */
+    private void checkReply(int worker) throws IOException {
+        if (!this.ins[worker].readBoolean()) {
+            throw new IOException("Sharded K-means - worker " + worker + " failed: "
+                    + this.ins[worker].readUTF());
+        }
+    }
+}
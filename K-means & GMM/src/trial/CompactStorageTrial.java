@@ -0,0 +1,91 @@
+package trial;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import dataset.CompactPointMatrix;
+import dataset.GMMDataset;
+import dataset.PointMatrix;
+import dataset.PointSource;
+import kmeans.OutOfCoreKmeans;
+
+/**
+ * Report the memory and accuracy of compact point storage: errors of coordinates, and how far
+ * K-means on compact points ends up from K-means on the original doubles.
+ */
+public class CompactStorageTrial {
+
+    // number of data points
+    private static final int pointsCount = 500000;
+
+    // dimension of data points
+    private static final int dimension = 2;
+
+    // number of centers
+    private static final int centerNum = 10;
+
+    // steps of K-means
+    private static final int steps = 30;
+
+    public static void main(String[] args) {
+        // points inside the border of GMMDataset, like generated datasets
+        double border = GMMDataset.BorderSize;
+        Random rand = new Random(1);
+        PointMatrix points = new PointMatrix(pointsCount, dimension);
+        double[] data = points.data();
+        for (int i = 0; i < pointsCount; i++) {
+            int cluster = rand.nextInt(centerNum);
+            for (int d = 0; d < dimension; d++) {
+                double center = (cluster * 0.7 + d * 0.3) % 2 * border - border * 0.9;
+                data[i * dimension + d] = Math.max(-border, Math.min(border,
+                        center + rand.nextGaussian() * border / 20));
+            }
+        }
+        double[] min = new double[dimension];
+        double[] max = new double[dimension];
+        Arrays.fill(min, -border);
+        Arrays.fill(max, border);
+
+        OutOfCoreKmeans reference = run(points);
+        double[] referenceCenters = reference.getCenters();
+        int[] referenceLabels = reference.getLabels();
+        System.out.printf("double:  inertia %.6f%n", reference.inertia());
+
+        CompactPointMatrix[] compacts = {
+                CompactPointMatrix.ofFloats(points),
+                CompactPointMatrix.ofFixed16(points, min, max)
+        };
+        for (CompactPointMatrix compact : compacts) {
+            OutOfCoreKmeans kmeans = run(compact);
+            double[] centers = kmeans.getCenters();
+            int[] labels = kmeans.getLabels();
+            double maxShift = 0;
+            for (int j = 0; j < centers.length; j++) {
+                maxShift = Math.max(maxShift, Math.abs(centers[j] - referenceCenters[j]));
+            }
+            int agreements = 0;
+            for (int i = 0; i < pointsCount; i++) {
+                if (labels[i] == referenceLabels[i]) {
+                    agreements++;
+                }
+            }
+            System.out.println(compact.precision() + ": " + compact.measureError(points));
+            System.out.printf("    inertia %.6f (relative difference %.3e), "
+                            + "max center difference %.3e, same labels %.4f%%%n",
+                    kmeans.inertia(), Math.abs(kmeans.inertia() - reference.inertia())
+                            / reference.inertia(), maxShift, 100.0 * agreements / pointsCount);
+        }
+    }
+
+    /**
+     * Run K-means with a fixed seed, so that all runs start from the same sample.
+     *
+     * @param source data points
+     * @return K-means after all steps
+     */
+    private static OutOfCoreKmeans run(PointSource source) {
+        OutOfCoreKmeans kmeans = new OutOfCoreKmeans(source, centerNum, 7);
+        kmeans.iterate(steps);
+        return kmeans;
+    }
+}
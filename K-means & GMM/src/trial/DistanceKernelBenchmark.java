@@ -0,0 +1,116 @@
+package trial;
+
+import java.util.Random;
+
+import kmeans.DistanceKernel;
+import kmeans.LloydEngine;
+
+/**
+ * Compare the nearest-center search with LloydEngine.euclideanDistance(...) (one call per point
+ * and center, with a square root) against DistanceKernel (squared distances to all centers in
+ * vectorizable loops).
+ */
+public class DistanceKernelBenchmark {
+
+    // number of data points
+    private static final int pointsCount = 200000;
+
+    // rounds of warming up the JIT compiler before measuring
+    private static final int warmUpRounds = 5;
+
+    // rounds measured
+    private static final int measuredRounds = 10;
+
+    public static void main(String[] args) {
+        DistanceKernelBenchmark benchmark = new DistanceKernelBenchmark();
+        int[][] cases = {{2, 5}, {2, 64}, {8, 16}, {16, 256}, {64, 64}};
+        for (int[] testCase : cases) {
+            benchmark.compare(testCase[0], testCase[1]);
+        }
+    }
+
+    /**
+     * Time both ways of searching the nearest center for a dimension and a number of centers.
+     *
+     * @param dimension dimension of points
+     * @param centerNum number of centers
+     */
+    public void compare(int dimension, int centerNum) {
+        Random rand = new Random(dimension * 31L + centerNum);
+        double[] data = new double[pointsCount * dimension];
+        double[] centers = new double[centerNum * dimension];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = rand.nextGaussian() * 5;
+        }
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = rand.nextGaussian() * 5;
+        }
+        int[] scalarLabels = new int[pointsCount];
+        int[] kernelLabels = new int[pointsCount];
+
+        for (int i = 0; i < warmUpRounds; i++) {
+            this.scalar(data, centers, centerNum, dimension, scalarLabels);
+            this.kernel(data, centers, centerNum, dimension, kernelLabels);
+        }
+
+        long scalarNanos = 0;
+        long kernelNanos = 0;
+        for (int i = 0; i < measuredRounds; i++) {
+            long start = System.nanoTime();
+            this.scalar(data, centers, centerNum, dimension, scalarLabels);
+            scalarNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            this.kernel(data, centers, centerNum, dimension, kernelLabels);
+            kernelNanos += System.nanoTime() - start;
+        }
+
+        int mismatches = 0;
+        for (int i = 0; i < pointsCount; i++) {
+            if (scalarLabels[i] != kernelLabels[i]) {
+                mismatches++;
+            }
+        }
+        double scalarPerPoint = (double) scalarNanos / measuredRounds / pointsCount;
+        double kernelPerPoint = (double) kernelNanos / measuredRounds / pointsCount;
+        System.out.printf("dimension %3d, centers %4d: euclideanDistance %8.2f ns/point, "
+                        + "kernel %8.2f ns/point, speedup %5.2fx, label mismatches %d%n",
+                dimension, centerNum, scalarPerPoint, kernelPerPoint,
+                scalarPerPoint / kernelPerPoint, mismatches);
+    }
+
+    /**
+     * Search the nearest centers with euclideanDistance(...), like LloydEngine used to do.
+     */
+    private void scalar(double[] data, double[] centers, int centerNum, int dimension,
+                        int[] labels) {
+        for (int i = 0; i < pointsCount; i++) {
+            int offset = i * dimension;
+            int centerSelected = 0;
+            double minDistance = LloydEngine.euclideanDistance(data, offset, centers, 0,
+                    dimension);
+            for (int l = 1; l < centerNum; l++) {
+                double temp = LloydEngine.euclideanDistance(data, offset, centers,
+                        l * dimension, dimension);
+                if (temp < minDistance) {
+                    minDistance = temp;
+                    centerSelected = l;
+                }
+            }
+            labels[i] = centerSelected;
+        }
+    }
+
+    /**
+     * Search the nearest centers with DistanceKernel.
+     */
+    private void kernel(double[] data, double[] centers, int centerNum, int dimension,
+                        int[] labels) {
+        double[] transposed = new double[centers.length];
+        double[] distances = new double[centerNum];
+        DistanceKernel.transpose(centers, centerNum, dimension, transposed);
+        for (int i = 0; i < pointsCount; i++) {
+            labels[i] = DistanceKernel.nearest(data, i * dimension, transposed, centerNum,
+                    dimension, distances);
+        }
+    }
+}
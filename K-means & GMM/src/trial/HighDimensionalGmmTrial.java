@@ -0,0 +1,79 @@
+package trial;
+
+import java.util.Random;
+
+import dataset.PointMatrix;
+import gmm.GMM;
+
+/**
+ * Run GMM on a mixture of Gaussian clusters in a high dimension, and report the time of an EM
+ * step, the log likelihood, and how well the components found match the clusters the points were
+ * drawn from.
+ */
+public class HighDimensionalGmmTrial {
+
+    // number of data points
+    private static final int pointsCount = 50000;
+
+    // dimension of data points
+    private static final int dimension = 50;
+
+    // number of clusters the points are drawn from, and of components
+    private static final int centerNum = 5;
+
+    // steps of EM
+    private static final int steps = 20;
+
+    public static void main(String[] args) {
+        int parallelism = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+
+        // clusters with random centers in a box and random scales per dimension
+        Random rand = new Random(1);
+        double[][] centers = new double[centerNum][dimension];
+        double[][] scales = new double[centerNum][dimension];
+        for (int k = 0; k < centerNum; k++) {
+            for (int d = 0; d < dimension; d++) {
+                centers[k][d] = rand.nextDouble() * 20 - 10;
+                scales[k][d] = 0.5 + rand.nextDouble() * 2;
+            }
+        }
+        PointMatrix points = new PointMatrix(pointsCount, dimension);
+        double[] data = points.data();
+        int[] clusters = new int[pointsCount];
+        for (int n = 0; n < pointsCount; n++) {
+            int k = rand.nextInt(centerNum);
+            clusters[n] = k;
+            for (int d = 0; d < dimension; d++) {
+                data[n * dimension + d] = centers[k][d] + rand.nextGaussian() * scales[k][d];
+            }
+        }
+
+        GMM gmm = new GMM(points, centerNum, 7);
+        gmm.setParallelism(parallelism);
+        gmm.iterate(1);
+        long start = System.nanoTime();
+        gmm.iterate(steps);
+        long nanos = System.nanoTime() - start;
+        System.out.printf("d = %d, N = %d, K = %d, %d thread(s): %.1f ms per EM step%n",
+                dimension, pointsCount, centerNum, parallelism, nanos / 1e6 / steps);
+        System.out.printf("log likelihood per point: %.4f%n",
+                gmm.logLikelihood() / pointsCount);
+
+        // purity - points sharing the majority cluster of their component
+        int[] labels = gmm.getLabels();
+        int[][] table = new int[centerNum][centerNum];
+        for (int n = 0; n < pointsCount; n++) {
+            table[labels[n]][clusters[n]]++;
+        }
+        int majority = 0;
+        for (int k = 0; k < centerNum; k++) {
+            int max = 0;
+            for (int j = 0; j < centerNum; j++) {
+                max = Math.max(max, table[k][j]);
+            }
+            majority += max;
+        }
+        System.out.printf("purity: %.4f%n", (double) majority / pointsCount);
+    }
+}
@@ -0,0 +1,91 @@
+package trial;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import dataset.PointMatrix;
+import kmeans.LloydEngine;
+import kmeans.ShardWorker;
+import kmeans.ShardedKmeans;
+
+/**
+ * Run sharded K-means with several worker processes on this machine, and compare the result with
+ * K-means in a single process started from the same centers.
+ */
+public class ShardedKmeansTrial {
+
+    // number of data points
+    private static final int pointsCount = 300000;
+
+    // dimension of data points
+    private static final int dimension = 4;
+
+    // number of centers
+    private static final int centerNum = 8;
+
+    // number of worker processes
+    private static final int workerNum = 3;
+
+    // steps taken
+    private static final int steps = 20;
+
+    public static void main(String[] args) throws IOException {
+        Random rand = new Random(1);
+        PointMatrix points = new PointMatrix(pointsCount, dimension);
+        double[] data = points.data();
+        for (int i = 0; i < pointsCount; i++) {
+            int cluster = rand.nextInt(centerNum);
+            for (int d = 0; d < dimension; d++) {
+                data[i * dimension + d] = cluster * 3 + rand.nextGaussian();
+            }
+        }
+
+        List<ShardWorker.Local> locals = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            for (int w = 0; w < workerNum; w++) {
+                ShardWorker.Local local = ShardWorker.launchLocal(1);
+                locals.add(local);
+                addresses.add(local.address());
+            }
+
+            try (ShardedKmeans sharded = new ShardedKmeans(addresses, points, centerNum, 7)) {
+                double[] centers = sharded.getCenters();
+                long start = System.nanoTime();
+                sharded.iterate(steps);
+                long shardedNanos = System.nanoTime() - start;
+                int[] shardedLabels = sharded.getLabels();
+
+                int[] labels = new int[pointsCount];
+                LloydEngine engine = new LloydEngine(points, centerNum);
+                double inertia = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < steps; i++) {
+                    inertia = engine.step(centers, labels);
+                }
+                long localNanos = System.nanoTime() - start;
+
+                System.out.println("shard sizes: " + Arrays.toString(sharded.shardSizes()));
+                System.out.printf("sharded: inertia %.6f, %.2f ms/step%n", sharded.inertia(),
+                        shardedNanos / 1e6 / steps);
+                System.out.printf("local:   inertia %.6f, %.2f ms/step%n", inertia,
+                        localNanos / 1e6 / steps);
+                System.out.println("same labels: " + Arrays.equals(labels, shardedLabels));
+                double maxDiff = 0;
+                double[] shardedCenters = sharded.getCenters();
+                for (int j = 0; j < centers.length; j++) {
+                    maxDiff = Math.max(maxDiff, Math.abs(centers[j] - shardedCenters[j]));
+                }
+                System.out.println("max difference of centers: " + maxDiff);
+            }
+        } finally {
+            for (ShardWorker.Local local : locals) {
+                local.close();
+            }
+        }
+    }
+}